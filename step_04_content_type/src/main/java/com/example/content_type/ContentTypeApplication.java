@@ -15,8 +15,10 @@ package com.example.content_type;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class ContentTypeApplication {
 
   public static void main(String[] args) {
@@ -0,0 +1,79 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.config;
+
+import com.example.content_type.repository.UserCredentialRepository;
+import com.example.content_type.service.JpaDataStoreFactory;
+import com.example.content_type.service.ShardedFileDataStoreFactory;
+import com.google.api.client.util.store.DataStoreFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/** Configures the data store in which users' credentials are persisted. */
+@Configuration
+public class CredentialStoreConfig {
+  private static final Logger logger = LoggerFactory.getLogger(CredentialStoreConfig.class);
+  private static final String TYPE_JPA = "jpa";
+
+  /** Creates the credential data store of the configured type.
+   *
+   * <p>With type "jpa", credentials are kept in the H2 database next to the users table. If
+   * importFileStore is set and the file store directory exists, its credentials are imported into
+   * the database once and the directory is renamed so that it is not imported again.
+   *
+   * <p>With type "file", credentials are kept in the sharded, append-only file store. Credentials
+   * previously saved by FileDataStoreFactory in the same directory are imported on first use.
+   * @param userCredentialRepository the class that interacts with credentials stored in H2.
+   * @param type "jpa" or "file".
+   * @param importFileStore whether the "jpa" store imports the credentials of the file store.
+   * @param directory the directory of the file store.
+   * @param shards the number of shards, and log files, per data store of the file store.
+   * @param flushIntervalMs how often pending changes are written to disk by the file store.
+   * @param fsync whether each write of the file store waits for the changes to reach the disk.
+   * @return the DataStoreFactory for credentials.
+   * @throws IOException if creating the store or importing credentials is unsuccessful.
+   */
+  @Bean
+  public DataStoreFactory credentialDataStoreFactory(
+      UserCredentialRepository userCredentialRepository,
+      @Value("${addon.credential-store.type:file}") String type,
+      @Value("${addon.credential-store.import-file-store:false}") boolean importFileStore,
+      @Value("${addon.credential-store.directory:credentialStore}") String directory,
+      @Value("${addon.credential-store.shards:16}") int shards,
+      @Value("${addon.credential-store.flush-interval-ms:100}") long flushIntervalMs,
+      @Value("${addon.credential-store.fsync:true}") boolean fsync) throws IOException {
+    if (!TYPE_JPA.equals(type)) {
+      return new ShardedFileDataStoreFactory(new File(directory), shards, flushIntervalMs, fsync);
+    }
+
+    JpaDataStoreFactory jpaDataStoreFactory = new JpaDataStoreFactory(userCredentialRepository);
+    File fileStoreDirectory = new File(directory);
+    if (importFileStore && fileStoreDirectory.isDirectory()) {
+      try (ShardedFileDataStoreFactory fileStore = new ShardedFileDataStoreFactory(
+          fileStoreDirectory, shards, flushIntervalMs, fsync)) {
+        jpaDataStoreFactory.importFrom(fileStore);
+      }
+      File migratedDirectory = new File(directory + ".migrated");
+      Files.move(fileStoreDirectory.toPath(), migratedDirectory.toPath());
+      logger.info("Moved the imported credential store to {}", migratedDirectory);
+    }
+    return jpaDataStoreFactory;
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/** Configures the executors used to run blocking calls off the request thread. */
+@Configuration
+public class ExecutorConfig {
+  public static final String GOOGLE_API_EXECUTOR = "googleApiExecutor";
+  public static final String ATTACHMENT_JOB_EXECUTOR = "attachmentJobExecutor";
+  public static final String REVOCATION_EXECUTOR = "revocationExecutor";
+  public static final String DEPROVISIONING_EXECUTOR = "deprovisioningExecutor";
+  public static final String ASYNC_HANDLER_EXECUTOR = "asyncHandlerExecutor";
+
+  /** Creates the bounded executor that runs Google API calls concurrently. Its pool size is the
+   * maximum number of Google API calls that are in flight at once across all requests.
+   * @param threads the number of threads in the pool.
+   * @param queueCapacity the number of calls that may wait for a free thread before new calls are
+   * rejected.
+   * @return the ThreadPoolTaskExecutor for Google API calls.
+   */
+  @Bean(name = GOOGLE_API_EXECUTOR)
+  public ThreadPoolTaskExecutor googleApiExecutor(
+      @Value("${addon.google-api.threads:16}") int threads,
+      @Value("${addon.google-api.queue-capacity:500}") int queueCapacity) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix("google-api-");
+    executor.setWaitForTasksToCompleteOnShutdown(true);
+    executor.setAwaitTerminationSeconds(30);
+    return executor;
+  }
+
+  /** Creates the worker pool that processes queued attachment creation jobs. Jobs are only handed
+   * to the pool when a worker is free, but a worker that has just finished a job may not have
+   * returned to the pool yet, so up to one job per worker may wait for it.
+   * @param workers the number of jobs processed concurrently.
+   * @return the ThreadPoolTaskExecutor for attachment jobs.
+   */
+  @Bean(name = ATTACHMENT_JOB_EXECUTOR)
+  public ThreadPoolTaskExecutor attachmentJobExecutor(
+      @Value("${addon.attachment-jobs.workers:4}") int workers) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(workers);
+    executor.setMaxPoolSize(workers);
+    executor.setQueueCapacity(workers);
+    executor.setThreadNamePrefix("attachment-job-");
+    return executor;
+  }
+
+  /** Creates the worker pool that sends queued token revocations to Google. Revocations are only
+   * handed to the pool when a worker is free, so the pool does not queue work of its own.
+   * @param workers the number of revoke calls sent concurrently.
+   * @return the ThreadPoolTaskExecutor for revocations.
+   */
+  @Bean(name = REVOCATION_EXECUTOR)
+  public ThreadPoolTaskExecutor revocationExecutor(
+      @Value("${addon.revocations.workers:2}") int workers) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(workers);
+    executor.setMaxPoolSize(workers);
+    executor.setQueueCapacity(0);
+    executor.setThreadNamePrefix("revocation-");
+    return executor;
+  }
+
+  /** Creates the single-thread pool that runs a bulk deprovisioning job. The job's revoke calls
+   * run on the Google API executor; this thread only drives the job's batches.
+   * @return the ThreadPoolTaskExecutor for deprovisioning jobs.
+   */
+  @Bean(name = DEPROVISIONING_EXECUTOR)
+  public ThreadPoolTaskExecutor deprovisioningExecutor() {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(1);
+    executor.setMaxPoolSize(1);
+    executor.setQueueCapacity(0);
+    executor.setThreadNamePrefix("deprovisioning-");
+    return executor;
+  }
+
+  /** Creates the bounded executor that runs the Google API and database work of request handlers
+   * in async mode, so that Tomcat's worker threads are released while the work is waiting on I/O.
+   * @param threads the number of threads in the pool.
+   * @param queueCapacity the number of requests that may wait for a free thread before new
+   * requests are rejected.
+   * @return the ThreadPoolTaskExecutor for async request handlers.
+   */
+  @Bean(name = ASYNC_HANDLER_EXECUTOR)
+  public ThreadPoolTaskExecutor asyncHandlerExecutor(
+      @Value("${addon.handlers.async.threads:64}") int threads,
+      @Value("${addon.handlers.async.queue-capacity:384}") int queueCapacity) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix("async-handler-");
+    executor.setWaitForTasksToCompleteOnShutdown(true);
+    executor.setAwaitTerminationSeconds(30);
+    return executor;
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.config;
+
+import org.apache.catalina.session.StandardManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/** Configures where HTTP sessions are kept. Sessions only hold the signed-in user's id and the
+ * launch context, never live Credential objects, so they stay small whichever store is used. With
+ * spring.session.store-type=jdbc they are kept in the SPRING_SESSION tables and shared by all
+ * nodes; otherwise Tomcat keeps them in memory, capped at a maximum number per node. In both cases
+ * idle sessions are evicted after server.servlet.session.timeout. */
+@Configuration
+public class SessionConfig {
+
+  /** Creates the Tomcat session manager used when sessions are kept in memory.
+   * @param maxActiveSessions the maximum number of sessions kept by this node; new sessions are
+   * rejected beyond it. -1 means no limit.
+   * @return the StandardManager for the application's context.
+   */
+  @Bean
+  public StandardManager sessionManager(
+      @Value("${addon.sessions.max-active:-1}") int maxActiveSessions) {
+    StandardManager manager = new StandardManager();
+    manager.setMaxActiveSessions(maxActiveSessions);
+    /** Sessions are not written to disk on shutdown; users sign in again after a restart. */
+    manager.setPathname(null);
+    return manager;
+  }
+
+  /** Installs the session manager in the embedded Tomcat's context.
+   * @param sessionManager the StandardManager created above.
+   * @return the customizer of the Tomcat web server factory.
+   */
+  @Bean
+  public WebServerFactoryCustomizer<TomcatServletWebServerFactory> sessionManagerCustomizer(
+      StandardManager sessionManager) {
+    return factory -> factory.addContextCustomizers(context -> context.setManager(sessionManager));
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.controllers;
+
+import com.example.content_type.models.DeprovisioningJob;
+import com.example.content_type.service.DeprovisioningService;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/** Handles administrative requests to the application server. Every request must carry the
+ * configured admin token as a bearer token; if no token is configured, the endpoints respond with
+ * 404 as if they did not exist. */
+@org.springframework.stereotype.Controller
+public class AdminController {
+  private static final String BEARER_PREFIX = "Bearer ";
+
+  /** Declare DeprovisioningService to be used in the AdminController class constructor. */
+  private final DeprovisioningService deprovisioningService;
+
+  private final byte[] adminToken;
+
+  /** AdminController constructor. Uses constructor injection to instantiate the
+   * DeprovisioningService class.
+   * @param deprovisioningService the service that runs bulk deprovisioning jobs.
+   * @param adminToken the bearer token required by the admin endpoints. Empty disables them.
+   */
+  public AdminController(DeprovisioningService deprovisioningService,
+      @Value("${addon.admin.token:}") String adminToken) {
+    this.deprovisioningService = deprovisioningService;
+    this.adminToken = adminToken.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Starts a job that revokes and deletes the credentials and user records of every user, or of
+   * every user with an email address in the given domain.
+   * @param authorization the Authorization header carrying the admin token.
+   * @param domain the email domain to deprovision, such as example.edu. If absent, every user is
+   * deprovisioned.
+   * @return 202 with the id of the new job, or 404 if the admin token is missing or wrong.
+   */
+  @PostMapping(value = {"/admin/deprovisioning-jobs"})
+  @ResponseBody
+  public ResponseEntity<Map<String, Object>> startDeprovisioning(
+      @RequestHeader(value = "Authorization", required = false) String authorization,
+      @RequestParam(value = "domain", required = false) String domain) {
+    if (!isAuthorized(authorization)) {
+      return ResponseEntity.notFound().build();
+    }
+    Map<String, Object> body = new HashMap<>();
+    body.put("jobId", deprovisioningService.enqueue(domain));
+    return ResponseEntity.status(HttpStatus.ACCEPTED).body(body);
+  }
+
+  /** Returns the progress of a deprovisioning job.
+   * @param authorization the Authorization header carrying the admin token.
+   * @param jobId the id of the job.
+   * @return the job's status, the number of users processed, revoked and queued for revocation
+   * retries, the throughput in users per second and any error, or 404 if the job does not exist or
+   * the admin token is missing or wrong.
+   */
+  @GetMapping(value = {"/admin/deprovisioning-jobs/{jobId}"})
+  @ResponseBody
+  public ResponseEntity<Map<String, Object>> getDeprovisioningJob(
+      @RequestHeader(value = "Authorization", required = false) String authorization,
+      @PathVariable String jobId) {
+    Optional<DeprovisioningJob> job = isAuthorized(authorization)
+        ? deprovisioningService.getJob(jobId) : Optional.empty();
+    if (job.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("status", job.get().getStatus());
+    body.put("domain", job.get().getEmail_domain());
+    body.put("processed", job.get().getProcessed());
+    body.put("revoked", job.get().getRevoked());
+    body.put("queued", job.get().getQueued());
+    body.put("error", job.get().getError());
+    Long startedAt = job.get().getStarted_at();
+    if (startedAt != null && job.get().getUpdated_at() > startedAt) {
+      body.put("usersPerSecond",
+          job.get().getProcessed() * 1000.0 / (job.get().getUpdated_at() - startedAt));
+    }
+    return ResponseEntity.ok(body);
+  }
+
+  /** Compares the bearer token with the admin token in constant time. */
+  private boolean isAuthorized(String authorization) {
+    if (adminToken.length == 0 || authorization == null
+        || !authorization.startsWith(BEARER_PREFIX)) {
+      return false;
+    }
+    return MessageDigest.isEqual(adminToken,
+        authorization.substring(BEARER_PREFIX.length()).getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -14,21 +14,40 @@
 package com.example.content_type.controllers;
 
 import com.example.content_type.models.Attachment;
+import com.example.content_type.models.AttachmentJob;
+import com.example.content_type.models.AttachmentJobItem;
+import com.example.content_type.service.AddOnContextCache;
+import com.example.content_type.service.AsyncHandlerService;
+import com.example.content_type.service.AttachmentCreationResult;
+import com.example.content_type.service.AttachmentJobService;
 import com.example.content_type.service.AttachmentService;
 import com.example.content_type.service.AuthService;
+import com.example.content_type.service.IdempotencyService;
+import com.example.content_type.service.LaunchContextStore;
+import com.example.content_type.service.LaunchContextStore.LaunchContext;
+import com.example.content_type.service.PrefetchService;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.classroom.model.AddOnAttachment;
-import com.google.api.services.classroom.model.AddOnContext;
 import com.google.api.services.classroom.model.EmbedUri;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import org.springframework.http.ResponseEntity;
 import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import com.google.api.services.classroom.Classroom;
 
 /** Handles Attachment related requests to the application server. */
@@ -40,14 +59,42 @@ public class AttachmentController {
   /** Declare AttachmentService to be used in the AttachmentController class constructor. */
   private final AttachmentService attachmentService;
 
+  /** Declare AttachmentJobService to be used in the AttachmentController class constructor. */
+  private final AttachmentJobService attachmentJobService;
+
+  /** Declare IdempotencyService to be used in the AttachmentController class constructor. */
+  private final IdempotencyService idempotencyService;
+
+  /** Declare LaunchContextStore to be used in the AttachmentController class constructor. */
+  private final LaunchContextStore launchContextStore;
+
+  /** Declare PrefetchService to be used in the AttachmentController class constructor. */
+  private final PrefetchService prefetchService;
+
+  /** Declare AsyncHandlerService to be used in the AttachmentController class constructor. */
+  private final AsyncHandlerService asyncHandlerService;
+
   /** AttachmentController constructor. Uses constructor injection to instantiate the
-   * AttachmentService class.
+   * AttachmentService, AttachmentJobService and IdempotencyService classes.
    * @param attachmentService the service class that handles implementation logic of requests for
    * attachments.
+   * @param attachmentJobService the service class that queues attachment creation jobs.
+   * @param idempotencyService the service class that de-duplicates create-attachment requests.
+   * @param launchContextStore the class that keeps the launch context passed by Classroom.
+   * @param prefetchService the service holding Classroom clients prefetched for the session.
+   * @param asyncHandlerService the service that runs the handlers' Google API and database work.
    */
-  public AttachmentController(AuthService authService, AttachmentService attachmentService) {
+  public AttachmentController(AuthService authService, AttachmentService attachmentService,
+      AttachmentJobService attachmentJobService, IdempotencyService idempotencyService,
+      LaunchContextStore launchContextStore, PrefetchService prefetchService,
+      AsyncHandlerService asyncHandlerService) {
     this.authService = authService;
     this.attachmentService = attachmentService;
+    this.attachmentJobService = attachmentJobService;
+    this.idempotencyService = idempotencyService;
+    this.launchContextStore = launchContextStore;
+    this.prefetchService = prefetchService;
+    this.asyncHandlerService = asyncHandlerService;
   }
 
   /** Displays a list of attachments the teacher can choose from. */
@@ -58,166 +105,250 @@ public class AttachmentController {
 
   /***/
   @RequestMapping(value = {"/create-attachment"}, method = {RequestMethod.POST})
-  public String create_attachment(
+  public Object create_attachment(
       HttpSession session, HttpServletRequest request,
       @RequestParam(value = "angkor", required = false)String angkor,
       @RequestParam(value = "eiffel", required = false)String eiffel,
       @RequestParam(value = "himeji", required = false)String himeji,
       @RequestParam(value = "taj", required = false)String taj,
+      @RequestParam(value = "idempotencyKey", required = false)String idempotencyKeyParam,
       Model model) throws Exception {
-    try {
-      // Reading the parameters passed from Classroom
-      ArrayList<String> attachments = new ArrayList<>();
-      ArrayList<AddOnAttachment> request_objects = new ArrayList<>();
-      ArrayList<AddOnAttachment> response_objects = new ArrayList<>();
-
-      if (angkor != null && angkor.equals("on")) {
-        attachments.add("angkor-wat.jpg");
-      }
-      if (eiffel != null && eiffel.equals("on")) {
-        attachments.add("eiffel-tower.jpeg");
-      }
-      if (himeji != null && himeji.equals("on")) {
-        attachments.add("himeji-castle.jpeg");
-      }
-      if (taj != null && taj.equals("on")) {
-        attachments.add("taj-mahal.jpeg");
-      }
+    // Reading the parameters passed from Classroom
+    ArrayList<String> attachments = new ArrayList<>();
+    ArrayList<AddOnAttachment> request_objects = new ArrayList<>();
 
-      if (attachments.size() == 0) {
-        return onError("No attachments were selected.", model);
-      }
+    if (angkor != null && angkor.equals("on")) {
+      attachments.add("angkor-wat.jpg");
+    }
+    if (eiffel != null && eiffel.equals("on")) {
+      attachments.add("eiffel-tower.jpeg");
+    }
+    if (himeji != null && himeji.equals("on")) {
+      attachments.add("himeji-castle.jpeg");
+    }
+    if (taj != null && taj.equals("on")) {
+      attachments.add("taj-mahal.jpeg");
+    }
 
-      for (int i = 1; i <= attachments.size(); i++) {
-        AddOnAttachment addOnAttachmentRequest = new AddOnAttachment();
-        addOnAttachmentRequest.setTeacherViewUri(new EmbedUri().setUri(
-            request.getScheme() + "://" + request.getServerName() + ":" + request.getLocalPort() + "/load-content-attachment"));
-        addOnAttachmentRequest.setStudentViewUri(new EmbedUri().setUri(
-            request.getScheme() + "://" + request.getServerName() + ":" + request.getLocalPort() + "/load-content-attachment"));
-        addOnAttachmentRequest.setTitle("Attachment " + i);
-        request_objects.add(addOnAttachmentRequest);
-
-        /** Setting up the Classroom service with the credentials. */
-        Classroom classroom;
-        Object credentials = session.getAttribute("credentials");
-        if (credentials != null) {
-          classroom = attachmentService.buildClassroomService((Credential) credentials);
-        } else if (session.getAttribute("login_hint") != null) {
-          credentials = authService.loadFromCredentialDataStore(
-              session.getAttribute("login_hint").toString());
-          classroom = attachmentService.buildClassroomService((Credential) credentials);
-        } else {
-          /** Return an error if credentials are not stored or detected in the session.*/
-          return onError("Do not have the required credentials.", model);
+    if (attachments.size() == 0) {
+      return onError("No attachments were selected.", model);
+    }
+
+    String viewUri = request.getScheme() + "://" + request.getServerName() + ":"
+        + request.getLocalPort() + "/load-content-attachment";
+    for (int i = 1; i <= attachments.size(); i++) {
+      AddOnAttachment addOnAttachmentRequest = new AddOnAttachment();
+      addOnAttachmentRequest.setTeacherViewUri(new EmbedUri().setUri(viewUri));
+      addOnAttachmentRequest.setStudentViewUri(new EmbedUri().setUri(viewUri));
+      addOnAttachmentRequest.setTitle("Attachment " + i);
+      request_objects.add(addOnAttachmentRequest);
+    }
+
+    LaunchContext launchContext = launchContextStore.load(request);
+
+    /** The Classroom and database calls run in the configured handler mode. */
+    return asyncHandlerService.execute(() -> {
+      try {
+        String userId = launchContext.get("login_hint");
+        String courseId = launchContext.get("courseId");
+        String itemId = launchContext.get("itemId");
+        Object addOnToken = launchContext.get("addOnToken");
+
+        /** In asynchronous mode, queue the attachments for the job workers and return right away,
+         * without setting up a Classroom client here. The workers load the user's stored
+         * credentials, so this requires a known user. */
+        boolean queued = attachmentJobService.isEnabled() && userId != null;
+        Classroom classroom = null;
+        if (!queued) {
+          /** Setting up the Classroom service with the credentials, once for all attachments. Use
+           * the client prefetched when the add-on discovery page was opened, if any. */
+          classroom = prefetchService.take(session.getId(), userId);
+          if (classroom == null) {
+            /** The client is cached for the user whose credential it uses, not for the hint. */
+            String sessionUserId = (String) session.getAttribute("userId");
+            Object credentials = authService.getCredential(sessionUserId);
+            if (credentials != null) {
+              classroom = attachmentService.getClassroomService(sessionUserId,
+                  (Credential) credentials);
+            } else if (userId != null) {
+              credentials = authService.loadFromCredentialDataStore(userId);
+              classroom = attachmentService.getClassroomService(userId, (Credential) credentials);
+            } else {
+              /** Return an error if credentials are not stored or detected in the session.*/
+              return onError("Do not have the required credentials.", model);
+            }
+          }
         }
 
-        // Create the addOnAttachment
-        String courseId = session.getAttribute("courseId").toString();
-        String itemId = session.getAttribute("itemId").toString();
-        Object addOnToken = session.getAttribute("addOnToken");
-        AddOnAttachment createAddOnResponse = attachmentService.createAddOnAttachment(
-            classroom, courseId, itemId, addOnToken, addOnAttachmentRequest);
-        response_objects.add(createAddOnResponse);
+        /** Identify the request by the key the options page supplies per render, so that a
+         * double-click or a retried POST returns the original result instead of creating the
+         * attachments again. Without a key, the request is not de-duplicated: choosing the same
+         * attachments again on purpose creates them again. */
+        Classroom attachmentClassroom = classroom;
+        IdempotencyService.CreationAction action = created -> {
+          if (queued) {
+            String jobId = attachmentJobService.enqueue(userId, courseId, itemId, addOnToken,
+                viewUri, attachments);
+            return AttachmentCreationResult.queued(attachments.size(), jobId);
+          }
 
-        String image_filename = attachments.get(i - 1);
-        attachmentService.saveAttachmentToRepository(createAddOnResponse.getId(), image_filename);
-      }
+          // Create the addOnAttachments concurrently and save them to the repository
+          List<AddOnAttachment> response_objects = attachmentService.createAttachments(
+              attachmentClassroom, courseId, itemId, addOnToken, request_objects, attachments,
+              created);
+          return AttachmentCreationResult.created(request_objects, response_objects);
+        };
+        AttachmentCreationResult result =
+            (idempotencyKeyParam != null && !idempotencyKeyParam.isEmpty())
+                ? idempotencyService.execute(
+                    IdempotencyService.key(session.getId(), idempotencyKeyParam), action)
+                : action.create(new TreeMap<>());
+
+        model.addAttribute("numAttachments", result.getNumAttachments());
+        if (result.getJobId() != null) {
+          model.addAttribute("jobId", result.getJobId());
+        } else {
+          model.addAttribute("requests", result.getRequests());
+          model.addAttribute("responses", result.getResponses());
+        }
 
-      model.addAttribute("numAttachments", attachments.size());
-      model.addAttribute("requests", request_objects);
-      model.addAttribute("responses", response_objects);
-
-      return "create-attachment";
-    } catch (GoogleJsonResponseException e) {
-      if (e.getStatusCode() == 403) {
-        if (e.getDetails().getMessage().startsWith("@InvalidAddOnToken")) {
-          return onError("Please sign out of all accounts in your browser and try again.", model);
-        } else if (e.getDetails().getMessage().startsWith("@ExpiredAddOnToken")) {
-          return onError("Please sign in again.", model);
+        return "create-attachment";
+      } catch (GoogleJsonResponseException e) {
+        if (e.getStatusCode() == 403) {
+          if (e.getDetails().getMessage().startsWith("@InvalidAddOnToken")) {
+            return onError("Please sign out of all accounts in your browser and try again.", model);
+          } else if (e.getDetails().getMessage().startsWith("@ExpiredAddOnToken")) {
+            return onError("Please sign in again.", model);
+          }
         }
+        throw e;
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw e;
+      }
+    });
+  }
+
+  /** Returns the status of a queued attachment creation job, for the create-attachment page to
+   * poll.
+   * @param jobId the id of the job.
+   * @param request the current request, whose launch context identifies the current user.
+   * @return the job's status, the number of attachments created so far and any error, or 404 if
+   * the job does not exist or belongs to another user.
+   */
+  @GetMapping(value = {"/attachment-jobs/{jobId}"})
+  @ResponseBody
+  public ResponseEntity<Map<String, Object>> getAttachmentJob(@PathVariable String jobId,
+      HttpServletRequest request) {
+    Optional<AttachmentJob> job = attachmentJobService.getJob(jobId);
+    String login_hint = launchContextStore.load(request).get("login_hint");
+    if (job.isEmpty() || login_hint == null || !job.get().getUser_id().equals(login_hint)) {
+      return ResponseEntity.notFound().build();
+    }
+
+    List<String> attachmentIds = new ArrayList<>();
+    List<AttachmentJobItem> items = attachmentJobService.getItems(jobId);
+    for (AttachmentJobItem item : items) {
+      if (item.getAttachment_id() != null) {
+        attachmentIds.add(item.getAttachment_id());
       }
-      throw e;
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw e;
     }
+    Map<String, Object> body = new HashMap<>();
+    body.put("status", job.get().getStatus());
+    body.put("total", items.size());
+    body.put("created", attachmentIds.size());
+    body.put("attachmentIds", attachmentIds);
+    body.put("error", job.get().getError());
+    return ResponseEntity.ok(body);
   }
 
   @RequestMapping(value = {"/load-content-attachment"}, method = {RequestMethod.GET})
-  public String loadAttachment(HttpServletRequest request, HttpSession session, Model model) throws Exception {
-    try {
-      /** Reading the parameters passed from Classroom */
-      if (request.getParameter("itemId") != null) {
-        session.setAttribute("itemId", request.getParameter("itemId"));
-      }
-      if (request.getParameter("courseId") != null) {
-        session.setAttribute("courseId", request.getParameter("courseId"));
-      }
-      if (request.getParameter("attachmentId") != null) {
-        session.setAttribute("attachmentId", request.getParameter("attachmentId"));
-      }
-      if (request.getParameter("login_hint") != null) {
-        session.setAttribute("login_hint", request.getParameter("login_hint"));
-      }
-      session.setAttribute("targetPage", "loadAttachmentPage");
-
-      // Setting up the Classroom service with the credentials
-      Classroom classroom;
-      Object credentials = session.getAttribute("credentials");
-      if (credentials != null) {
-        classroom = attachmentService.buildClassroomService((Credential) credentials);
-      } else if (session.getAttribute("login_hint") != null) {
-        credentials = authService.loadFromCredentialDataStore(
-            session.getAttribute("login_hint").toString());
-        if (credentials == null) {
-          return "authorization";
+  public Object loadAttachment(HttpServletRequest request, HttpServletResponse response,
+      HttpSession session, Model model) throws Exception {
+    /** Reading the parameters passed from Classroom */
+    LaunchContext launchContext = launchContextStore.load(request);
+    if (request.getParameter("itemId") != null) {
+      launchContext.set("itemId", request.getParameter("itemId"));
+    }
+    if (request.getParameter("courseId") != null) {
+      launchContext.set("courseId", request.getParameter("courseId"));
+    }
+    if (request.getParameter("attachmentId") != null) {
+      launchContext.set("attachmentId", request.getParameter("attachmentId"));
+    }
+    if (request.getParameter("login_hint") != null) {
+      launchContext.set("login_hint", request.getParameter("login_hint"));
+    }
+    launchContext.set("targetPage", "loadAttachmentPage");
+    launchContextStore.save(request, response, launchContext);
+
+    /** The Classroom and database calls run in the configured handler mode. */
+    return asyncHandlerService.execute(() -> {
+      try {
+        // Setting up the Classroom service with the credentials
+        String userId = launchContext.get("login_hint");
+        /** Use the client prefetched when the add-on discovery page was opened, if any. */
+        Classroom classroom = prefetchService.take(session.getId(), userId);
+        /** Per-user caches are keyed by the user whose credential is used, not by the hint. */
+        String credentialUserId = userId;
+        if (classroom == null) {
+          credentialUserId = (String) session.getAttribute("userId");
+          Object credentials = authService.getCredential(credentialUserId);
+          if (credentials != null) {
+            classroom = attachmentService.getClassroomService(credentialUserId,
+                (Credential) credentials);
+          } else if (userId != null) {
+            credentialUserId = userId;
+            credentials = authService.loadFromCredentialDataStore(userId);
+            if (credentials == null) {
+              return "authorization";
+            }
+            classroom = attachmentService.getClassroomService(userId, (Credential) credentials);
+          } else {
+            /** Return an error if credentials are not stored or detected in the session.*/
+            return onError("Do not have the required credentials.", model);
+          }
         }
-        classroom = attachmentService.buildClassroomService((Credential) credentials);
-      } else {
-        /** Return an error if credentials are not stored or detected in the session.*/
-        return onError("Do not have the required credentials.", model);
-      }
 
-      // Figuring out which view to display - teacher or student
-      String courseId = session.getAttribute("courseId").toString();
-      String itemId = session.getAttribute("itemId").toString();
-      AddOnContext addOnContext = attachmentService.getAddOnContext(classroom, courseId, itemId);
-
-      String attachmentId =  session.getAttribute("attachmentId").toString();
-      Attachment attachment = attachmentService.getAttachmentFromRepository(attachmentId);
-      String imageFilename = "images/" + attachment.getImage_filename();
-      model.addAttribute("imageFilename", imageFilename);
-
-      String userContext;
-      String userMessage;
-      if (addOnContext.get("studentContext") != null) {
-        userContext = "student";
-        userMessage = "Take a look at the following landmark image!";
-      } else {
-        userContext = "teacher";
-        userMessage = "You attached the following landmark images to this assignment.";
-      }
-      model.addAttribute("userContext", userContext);
-      model.addAttribute("userMessage", userMessage);
+        // Figuring out which view to display - teacher or student
+        String courseId = launchContext.get("courseId");
+        String itemId = launchContext.get("itemId");
+        String userContext = attachmentService.getUserContext(credentialUserId, classroom,
+            courseId, itemId);
+
+        String attachmentId = launchContext.get("attachmentId");
+        Attachment attachment = attachmentService.getAttachmentFromRepository(attachmentId);
+        String imageFilename = "images/" + attachment.getImage_filename();
+        model.addAttribute("imageFilename", imageFilename);
+
+        String userMessage;
+        if (userContext.equals(AddOnContextCache.STUDENT)) {
+          userMessage = "Take a look at the following landmark image!";
+        } else {
+          userMessage = "You attached the following landmark images to this assignment.";
+        }
+        model.addAttribute("userContext", userContext);
+        model.addAttribute("userMessage", userMessage);
 
-      return "show-content-attachment";
-    } catch (GoogleJsonResponseException | TokenResponseException e) {
-      if (e instanceof GoogleJsonResponseException) {
-        if (e.getStatusCode() == 401) {
+        return "show-content-attachment";
+      } catch (GoogleJsonResponseException | TokenResponseException e) {
+        if (e instanceof GoogleJsonResponseException) {
+          if (e.getStatusCode() == 401) {
+            return "authorization";
+          } else if (e.getStatusCode() == 404) {
+            return onError("The attachment you created cannot be found. Please make sure "
+                + "you are signed in with the correct account and try again.", model);
+          }
+        } else if (e instanceof TokenResponseException && ((TokenResponseException) e)
+            .getDetails().getError().equals("invalid_grant")) {
           return "authorization";
-        } else if (e.getStatusCode() == 404) {
-          return onError("The attachment you created cannot be found. Please make sure "
-              + "you are signed in with the correct account and try again.", model);
         }
-      } else if (e instanceof TokenResponseException && ((TokenResponseException) e)
-          .getDetails().getError().equals("invalid_grant")) {
-        return "authorization";
+        throw e;
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw e;
       }
-      throw e;
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw e;
-    }
+    });
   }
 
   /** Handles application errors.
@@ -13,15 +13,19 @@
 // the License.
 package com.example.content_type.controllers;
 
+import com.example.content_type.service.AsyncHandlerService;
 import com.example.content_type.service.AuthService;
-import com.example.content_type.models.User;
+import com.example.content_type.service.LaunchContextStore;
+import com.example.content_type.service.LaunchContextStore.LaunchContext;
+import com.example.content_type.service.PrefetchService;
+import com.example.content_type.service.TokenRefreshCoordinator;
+import com.example.content_type.models.UserAccount;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.services.oauth2.model.Userinfo;
 import java.util.HashMap;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
-import org.springframework.http.ResponseEntity;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 
@@ -31,11 +35,28 @@ public class AuthController {
   /** Declare AuthService to be used in the Controller class constructor. */
   private final AuthService authService;
 
-  /** AuthController constructor. Uses constructor injection to instantiate the AuthService class.
+  /** Declare LaunchContextStore to be used in the Controller class constructor. */
+  private final LaunchContextStore launchContextStore;
+
+  /** Declare PrefetchService to be used in the Controller class constructor. */
+  private final PrefetchService prefetchService;
+
+  /** Declare AsyncHandlerService to be used in the Controller class constructor. */
+  private final AsyncHandlerService asyncHandlerService;
+
+  /** AuthController constructor. Uses constructor injection to instantiate the AuthService,
+   * LaunchContextStore, PrefetchService and AsyncHandlerService classes.
    * @param authService the service class that handles the implementation logic of requests.
+   * @param launchContextStore the class that keeps the launch context and OAuth state.
+   * @param prefetchService the service that prepares the teacher's next step in the background.
+   * @param asyncHandlerService the service that runs the token exchange in the configured mode.
    */
-  public AuthController(AuthService authService) {
+  public AuthController(AuthService authService, LaunchContextStore launchContextStore,
+      PrefetchService prefetchService, AsyncHandlerService asyncHandlerService) {
     this.authService = authService;
+    this.launchContextStore = launchContextStore;
+    this.prefetchService = prefetchService;
+    this.asyncHandlerService = asyncHandlerService;
   }
 
   /** Returns the index page that will be displayed when the add-on opens in a new tab.
@@ -70,6 +91,7 @@ public class AuthController {
   /** Returns the add-on discovery or auth page that will be displayed when the iframe is first
    * opened in Classroom.
    * @param request the current request used to obtain the login_hint query parameter.
+   * @param response the current response, which carries the launch context in signed-cookie mode.
    * @param session the current session.
    * @param model the Model interface used to display information on the error page.
    * @return the authorization page if the session does not exist or the credentials attribute is
@@ -77,63 +99,71 @@ public class AuthController {
    * or the onError function to handle and display the error message.
    */
   @GetMapping(value = {"/addon-discovery"})
-  public String addon_discovery(HttpServletRequest request, HttpSession session, Model model) {
+  public String addon_discovery(HttpServletRequest request, HttpServletResponse response,
+      HttpSession session, Model model) {
     try {
       /** Retrieve the itemId, courseId, and addOnToken query parameters from the request URL and
-       * add them to the session, if they exist. */
+       * add them to the launch context, if they exist. */
+      LaunchContext launchContext = launchContextStore.load(request);
       String itemId = request.getParameter("itemId");
       String itemType = request.getParameter("itemType");
       String courseId = request.getParameter("courseId");
       String addOnToken = request.getParameter("addOnToken");
       if (itemId != null) {
-        session.setAttribute("itemId", itemId);
+        launchContext.set("itemId", itemId);
       }
       if (itemType != null) {
-        session.setAttribute("itemType", itemType);
+        launchContext.set("itemType", itemType);
       }
       if (courseId != null) {
-        session.setAttribute("courseId", courseId);
+        launchContext.set("courseId", courseId);
       }
       if (addOnToken != null) {
-        session.setAttribute("addOnToken", addOnToken);
+        launchContext.set("addOnToken", addOnToken);
       }
-      session.setAttribute("targetPage", "addOnDiscovery");
+      launchContext.set("targetPage", "addOnDiscovery");
 
       /** Retrieve the login_hint query parameter from the request URL. */
       String login_hint = request.getParameter("login_hint");
 
-      /** If the query parameter is not available, use the values in the session. */
+      /** If the query parameter is not available, use the value in the launch context. */
       if (login_hint == null) {
-        login_hint = (String) session.getAttribute("login_hint");
+        login_hint = launchContext.get("login_hint");
       }
 
-      /** If the login_hint query parameter is provided, add it to the session. */
+      /** If the login_hint query parameter is provided, add it to the launch context. */
       else if (login_hint != null) {
-        session.setAttribute("login_hint", login_hint);
+        launchContext.set("login_hint", login_hint);
       }
+      launchContextStore.save(request, response, launchContext);
 
-      /** Check if the credentials exist in the session. The session could have been cleared when
-       * the user clicked the Sign-Out button, and the expected behavior after sign-out would be to
-       * display the sign-in page when the iframe is opened again. */
-      if (session.getAttribute("credentials") == null) {
+      /** Check if the session holds a signed-in user. The session only holds the user's id; the
+       * credentials themselves are shared by all of the user's sessions. The session could have
+       * been cleared when the user clicked the Sign-Out button, and the expected behavior after
+       * sign-out would be to display the sign-in page when the iframe is opened again. */
+      if (session.getAttribute("userId") == null) {
         return startAuthFlow(model);
       }
 
-      /** At this point, we know that credentials exist in the session, but we should update the
-       * session credentials with the credentials in persistent storage in case they were refreshed.
-       * If the credentials in persistent storage are null, we should navigate the user to the
-       * authorization flow to obtain persisted credentials.
+      /** At this point, we know that the session holds a signed-in user, but we should check that
+       * the user's credentials are still in persistent storage. If they are not, we should navigate
+       * the user to the authorization flow to obtain persisted credentials.
        */
-      User storedUser = authService.getUser(login_hint);
+      UserAccount storedUser = authService.getUserAccount(login_hint);
       if (storedUser != null) {
-        Credential credential = authService.loadFromCredentialDataStore(login_hint);
+        Credential credential = authService.getCredential(storedUser);
         if (credential != null) {
-          session.setAttribute("credentials", credential);
+          session.setAttribute("userId", storedUser.getUser().getId());
         } else {
           return startAuthFlow(model);
         }
       }
 
+      /** Start loading what the create and view handlers need while the teacher picks
+       * attachments. */
+      prefetchService.prefetch(session.getId(), login_hint, launchContext.get("courseId"),
+          launchContext.get("itemId"));
+
       /** Finally, if there are credentials in the session and in persistent storage, direct the
        * user to the addon-discovery page. */
       return "addon-discovery";
@@ -143,18 +173,21 @@ public class AuthController {
   }
 
   /** Redirects the sign-in pop-up to the authorization URL.
+   * @param request the current request, used to read the launch context.
    * @param response the response object used to redirect the client to the authorization URL.
-   * @param session the current session.
    * @throws Exception if redirection to the authorization URL is unsuccessful.
    */
   @GetMapping(value = {"/authorize"})
-  public void authorize(HttpServletResponse response, HttpSession session) throws Exception {
+  public void authorize(HttpServletRequest request, HttpServletResponse response)
+      throws Exception {
     try {
-      String login_hint = (String) session.getAttribute("login_hint");
+      LaunchContext launchContext = launchContextStore.load(request);
+      String login_hint = launchContext.get("login_hint");
       HashMap authDataMap = authService.authorize(login_hint);
       String authUrl = authDataMap.get("url").toString();
       String state = authDataMap.get("state").toString();
-      session.setAttribute("state", state);
+      launchContext.set("state", state);
+      launchContextStore.save(request, response, launchContext);
       response.sendRedirect(authUrl);
     } catch (Exception e) {
       throw e;
@@ -168,48 +201,61 @@ public class AuthController {
    * @param response the response object used to set the status code for the response.
    * @param model the Model interface used to display information on the error page.
    * @return the close-pop-up template if authorization is successful, or the onError function to
-   * handle and display the error message.
+   * handle and display the error message. In async mode, a CompletableFuture of either.
+   * @throws Exception if the token exchange cannot be started.
    */
   @GetMapping(value = {"/callback"})
-  public String callback(HttpServletRequest request, HttpServletResponse response,
-      HttpSession session, Model model) {
-    try {
-      String authCode = request.getParameter("code");
-      String requestState = request.getParameter("state");
+  public Object callback(HttpServletRequest request, HttpServletResponse response,
+      HttpSession session, Model model) throws Exception {
+    String authCode = request.getParameter("code");
+    String requestState = request.getParameter("state");
 
-      String sessionState = session.getAttribute("state").toString();
-      if (!requestState.equals(sessionState)) {
-        response.setStatus(401);
-        return onError("Invalid state parameter.", model);
-      }
+    /** The state is used once: remove it from the launch context before checking it. */
+    LaunchContext launchContext = launchContextStore.load(request);
+    String sessionState = launchContext.get("state");
+    launchContext.set("state", null);
+    launchContextStore.save(request, response, launchContext);
+    if (sessionState == null || !sessionState.equals(requestState)) {
+      response.setStatus(401);
+      return onError("Invalid state parameter.", model);
+    }
 
-      Credential credentials = authService.getAndSaveCredentials(authCode);
-      session.setAttribute("credentials", credentials);
+    /** The token exchange and database writes run in the configured handler mode. */
+    return asyncHandlerService.execute(() -> {
+      try {
+        Credential credentials = authService.getAndSaveCredentials(authCode);
+        session.setAttribute("userId", TokenRefreshCoordinator.getUserId(credentials));
 
-      /** This is the end of the auth flow. We should save user info to the database. */
-      Userinfo userinfo = authService.getUserInfo(credentials);
-      authService.saveUser(credentials, userinfo, session.getAttribute("login_hint"));
+        /** This is the end of the auth flow. We should save user info to the database. The user's
+         * id and email come from the verified ID token, without another call to Google. */
+        Userinfo userinfo = authService.getUserInfo(credentials);
+        authService.saveUser(credentials, userinfo, launchContext.get("login_hint"));
 
-      /** Check where the request originated from. */
-      if (session.getAttribute("targetPage").toString().equals("loadAttachmentPage")) {
-        return "close-pop-up-load-attachment";
+        /** Check where the request originated from. */
+        if ("loadAttachmentPage".equals(launchContext.get("targetPage"))) {
+          return "close-pop-up-load-attachment";
+        }
+        return "close-pop-up-addon-discovery";
+      } catch (Exception e) {
+        return onError(e.getMessage(), model);
       }
-      return "close-pop-up-addon-discovery";
-    } catch (Exception e) {
-      return onError(e.getMessage(), model);
-    }
+    });
   }
 
   /** Returns the test request page with the user's email.
+   * @param request the current request, used to read the launch context.
    * @param session the current session.
    * @param model the Model interface used to display information on the error page.
    * @return the test page that displays the current user's email or the onError function to handle
    * and display the error message.
    */
   @GetMapping(value = {"/test"})
-  public String test(HttpSession session, Model model) {
+  public String test(HttpServletRequest request, HttpSession session, Model model) {
     try {
-      Credential credentials = (Credential) session.getAttribute("credentials");
+      Credential credentials = authService.getCredential((String) session.getAttribute("userId"));
+      if (credentials == null) {
+        return startAuthFlow(model);
+      }
       Userinfo userInfo = authService.getUserInfo(credentials);
       String userInfoEmail = userInfo.getEmail();
       if (userInfoEmail != null) {
@@ -219,7 +265,8 @@ public class AuthController {
       }
 
       /** Save credentials in case access token was refreshed. */
-      authService.saveUser(credentials, null, session.getAttribute("login_hint"));
+      authService.saveUser(credentials, null,
+          launchContextStore.load(request).get("login_hint"));
       return "test";
     } catch (Exception e) {
       return onError(e.getMessage(), model);
@@ -227,16 +274,21 @@ public class AuthController {
   }
 
   /** Clears the credentials in the session and returns the sign-out confirmation page.
+   * @param request the current request, used to read the launch context.
    * @param session the current session.
    * @param model the Model interface used to display information on the error page.
    * @return the sign-out confirmation page, or the onError function to handle and display the error
    * message.
    */
   @GetMapping(value = {"/clear"})
-  public String clear(HttpSession session, Model model) {
+  public String clear(HttpServletRequest request, HttpSession session, Model model) {
     try {
-      if (session != null && session.getAttribute("credentials") != null) {
-        session.removeAttribute("credentials");
+      if (session != null && session.getAttribute("userId") != null) {
+        session.removeAttribute("userId");
+        String login_hint = launchContextStore.load(request).get("login_hint");
+        if (login_hint != null) {
+          authService.invalidateCredentials(login_hint);
+        }
       }
       return "sign-out";
     } catch (Exception e) {
@@ -244,26 +296,23 @@ public class AuthController {
     }
   }
 
-  /** Revokes the app's permissions and returns the authorization page.
+  /** Revokes the app's permissions and returns the authorization page. The credentials are removed
+   * immediately; the call to Google's revoke endpoint is sent in the background.
+   * @param request the current request, used to read the launch context.
    * @param session the current session.
    * @param model the Model interface used to display information on the error page.
    * @return the authorization page, or the onError function to handle and display the error
    * message.
    */
   @GetMapping(value = {"/revoke"})
-  public String revoke(HttpSession session, Model model) {
+  public String revoke(HttpServletRequest request, HttpSession session, Model model) {
     try {
-      if (session != null && session.getAttribute("credentials") != null) {
-        String login_hint = session.getAttribute("login_hint").toString();
-        Credential credentials = (Credential) session.getAttribute("credentials");
-        ResponseEntity responseEntity = authService.revokeCredentials(credentials, login_hint);
-        Integer httpStatusCode = responseEntity.getStatusCodeValue();
-
-        if (httpStatusCode != 200) {
-          return onError("There was an issue revoking access: " +
-              responseEntity.getStatusCode(), model);
-        }
-        session.removeAttribute("credentials");
+      Credential credentials = session != null
+          ? authService.getCredential((String) session.getAttribute("userId")) : null;
+      if (credentials != null) {
+        String login_hint = launchContextStore.load(request).get("login_hint");
+        authService.revokeCredentials(credentials, login_hint);
+        session.removeAttribute("userId");
       }
       return startAuthFlow(model);
     } catch (Exception e) {
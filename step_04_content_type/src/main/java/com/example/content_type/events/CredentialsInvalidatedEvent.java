@@ -0,0 +1,52 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.events;
+
+/** Published when a user's credentials are revoked or cleared, so that any component holding
+ * objects built from those credentials can drop them. */
+public class CredentialsInvalidatedEvent {
+
+  /** The id of the user whose credentials are no longer valid. */
+  private final String userId;
+
+  /** Whether the credentials were invalidated on another node. */
+  private final boolean remote;
+
+  /** The CredentialsInvalidatedEvent class constructor.
+   * @param userId the id of the user whose credentials are no longer valid.
+   */
+  public CredentialsInvalidatedEvent(String userId) {
+    this(userId, false);
+  }
+
+  /** The CredentialsInvalidatedEvent class constructor.
+   * @param userId the id of the user whose credentials are no longer valid.
+   * @param remote true if the credentials were invalidated on another node, in which case the
+   * event is not broadcast again.
+   */
+  public CredentialsInvalidatedEvent(String userId, boolean remote) {
+    this.userId = userId;
+    this.remote = remote;
+  }
+
+  /** Getter for the user id. */
+  public String getUserId() {
+    return userId;
+  }
+
+  /** Getter for the remote flag. */
+  public boolean isRemote() {
+    return remote;
+  }
+}
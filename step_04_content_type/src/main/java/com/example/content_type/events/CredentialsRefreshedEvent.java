@@ -0,0 +1,34 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.events;
+
+/** Published when a user's access token is refreshed and the new token is saved, so that copies
+ * of the old credentials held elsewhere can be dropped. */
+public class CredentialsRefreshedEvent {
+
+  /** The id of the user whose access token was refreshed. */
+  private final String userId;
+
+  /** The CredentialsRefreshedEvent class constructor.
+   * @param userId the id of the user whose access token was refreshed.
+   */
+  public CredentialsRefreshedEvent(String userId) {
+    this.userId = userId;
+  }
+
+  /** Getter for the user id. */
+  public String getUserId() {
+    return userId;
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+/** An entity class that provides a model to store a queued attachment creation job. The job and its
+ * items are persisted so that any node can process the job and its progress can be polled. */
+@Entity
+@Table(name = "attachment_jobs")
+public class AttachmentJob {
+  public static final String PENDING = "PENDING";
+  public static final String RUNNING = "RUNNING";
+  public static final String SUCCEEDED = "SUCCEEDED";
+  public static final String FAILED = "FAILED";
+
+  /** The unique job id returned to the client. The @Id annotation specifies that this is the
+   * primary key. */
+  @Id
+  @Column
+  private String id;
+
+  /** The id of the user who created the job, used to load their stored credentials. */
+  @Column
+  private String user_id;
+
+  /** The course and item the attachments are added to. */
+  @Column
+  private String course_id;
+
+  @Column
+  private String item_id;
+
+  /** The add-on token provided by Classroom when the iframe was opened. */
+  @Column(length = 2048)
+  private String add_on_token;
+
+  /** The teacher and student view URI of every attachment in the job. */
+  @Column(length = 2048)
+  private String view_uri;
+
+  /** One of PENDING, RUNNING, SUCCEEDED or FAILED. */
+  @Column
+  private String status;
+
+  /** The error message if the job failed. */
+  @Column(length = 2048)
+  private String error;
+
+  /** The time the job was last claimed or updated, in milliseconds since the epoch. A RUNNING job
+   * that has not been updated for a while was abandoned by its worker and may be claimed again. */
+  @Column
+  private long updated_at;
+
+  /** Used to make sure only one worker claims a job. */
+  @Version
+  private long version;
+
+  /** Required AttachmentJob class no args constructor. */
+  public AttachmentJob() {
+  }
+
+  /** The AttachmentJob class constructor that creates a pending job with the specified parameters.
+   * @param id the unique job id.
+   * @param user_id the id of the user who created the job.
+   * @param course_id the id of the course the item belongs to.
+   * @param item_id the id of the item the attachments are added to.
+   * @param add_on_token the add-on token provided by Classroom.
+   * @param view_uri the teacher and student view URI of the attachments.
+   */
+  public AttachmentJob(String id, String user_id, String course_id, String item_id,
+      String add_on_token, String view_uri) {
+    this.id = id;
+    this.user_id = user_id;
+    this.course_id = course_id;
+    this.item_id = item_id;
+    this.add_on_token = add_on_token;
+    this.view_uri = view_uri;
+    this.status = PENDING;
+    this.updated_at = System.currentTimeMillis();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUser_id() {
+    return user_id;
+  }
+
+  public String getCourse_id() {
+    return course_id;
+  }
+
+  public String getItem_id() {
+    return item_id;
+  }
+
+  public String getAdd_on_token() {
+    return add_on_token;
+  }
+
+  public String getView_uri() {
+    return view_uri;
+  }
+
+  /** Getter and setter for the status column. */
+  public String getStatus() {
+    return status;
+  }
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  /** Getter and setter for the error column. */
+  public String getError() {
+    return error;
+  }
+  public void setError(String error) {
+    this.error = error;
+  }
+
+  /** Getter and setter for the updated_at column. */
+  public long getUpdated_at() {
+    return updated_at;
+  }
+  public void setUpdated_at(long updated_at) {
+    this.updated_at = updated_at;
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/** An entity class that provides a model to store a single attachment of a queued job. */
+@Entity
+@Table(name = "attachment_job_items")
+public class AttachmentJobItem {
+
+  /** The generated primary key. */
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  /** The id of the job this item belongs to. */
+  @Column
+  private String job_id;
+
+  /** The 1-based position of the item in the selection, used for the "Attachment N" title. */
+  @Column
+  private int position;
+
+  /** The attachment image filename. */
+  @Column
+  private String image_filename;
+
+  /** The id of the attachment created in Classroom, or null if it was not created yet. */
+  @Column
+  private String attachment_id;
+
+  /** Required AttachmentJobItem class no args constructor. */
+  public AttachmentJobItem() {
+  }
+
+  /** The AttachmentJobItem class constructor that creates an item with the specified parameters.
+   * @param job_id the id of the job this item belongs to.
+   * @param position the 1-based position of the item in the selection.
+   * @param image_filename the attachment image filename.
+   */
+  public AttachmentJobItem(String job_id, int position, String image_filename) {
+    this.job_id = job_id;
+    this.position = position;
+    this.image_filename = image_filename;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getJob_id() {
+    return job_id;
+  }
+
+  public int getPosition() {
+    return position;
+  }
+
+  public String getImage_filename() {
+    return image_filename;
+  }
+
+  /** Getter and setter for the attachment_id column. */
+  public String getAttachment_id() {
+    return attachment_id;
+  }
+  public void setAttachment_id(String attachment_id) {
+    this.attachment_id = attachment_id;
+  }
+}
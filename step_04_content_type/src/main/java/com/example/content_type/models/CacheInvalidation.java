@@ -0,0 +1,86 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/** An entity class that provides a model to broadcast a cache invalidation to the other nodes. A
+ * node that changes or revokes a cached object stores a row; every node polls the rows written
+ * after the last one it has seen and drops the named entry from its own cache. */
+@Entity
+@Table(name = "cache_invalidations")
+public class CacheInvalidation {
+
+  /** The generated primary key, increasing in the order the rows are written. */
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  /** The cache the entry belongs to, such as "credentials" or "attachments". */
+  @Column
+  private String cache_name;
+
+  /** The key of the entry to drop, such as a user id or an attachment id. */
+  @Column
+  private String cache_key;
+
+  /** The id of the node that wrote the row, which already dropped the entry. */
+  @Column
+  private String node_id;
+
+  /** The time the row was written, in milliseconds since the epoch. */
+  @Column
+  private long created_at;
+
+  /** Required CacheInvalidation class no args constructor. */
+  public CacheInvalidation() {
+  }
+
+  /** The CacheInvalidation class constructor.
+   * @param cache_name the cache the entry belongs to.
+   * @param cache_key the key of the entry to drop.
+   * @param node_id the id of the node writing the row.
+   */
+  public CacheInvalidation(String cache_name, String cache_key, String node_id) {
+    this.cache_name = cache_name;
+    this.cache_key = cache_key;
+    this.node_id = node_id;
+    this.created_at = System.currentTimeMillis();
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getCache_name() {
+    return cache_name;
+  }
+
+  public String getCache_key() {
+    return cache_key;
+  }
+
+  public String getNode_id() {
+    return node_id;
+  }
+
+  public long getCreated_at() {
+    return created_at;
+  }
+}
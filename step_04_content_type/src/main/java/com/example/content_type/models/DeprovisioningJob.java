@@ -0,0 +1,169 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+/** An entity class that provides a model to store a bulk deprovisioning job, which revokes and
+ * deletes the credentials of every user, or of every user in an email domain. Users are processed
+ * in id order and the last processed id is stored as a checkpoint, so that an interrupted job
+ * resumes after the last completed batch. */
+@Entity
+@Table(name = "deprovisioning_jobs")
+public class DeprovisioningJob {
+  public static final String PENDING = "PENDING";
+  public static final String RUNNING = "RUNNING";
+  public static final String SUCCEEDED = "SUCCEEDED";
+  public static final String FAILED = "FAILED";
+
+  /** The unique job id returned to the caller. The @Id annotation specifies that this is the
+   * primary key. */
+  @Id
+  @Column
+  private String id;
+
+  /** The email domain whose users are deprovisioned, or null for all users. */
+  @Column
+  private String email_domain;
+
+  /** One of PENDING, RUNNING, SUCCEEDED or FAILED. */
+  @Column
+  private String status;
+
+  /** The id of the last user of the last completed batch. Users are processed in id order, so the
+   * job resumes with the users after this id. */
+  @Column
+  private String checkpoint;
+
+  /** The number of users processed so far. */
+  @Column
+  private long processed;
+
+  /** The number of users whose token was revoked, or was already invalid. */
+  @Column
+  private long revoked;
+
+  /** The number of users whose revoke call failed and was queued for retries. */
+  @Column
+  private long queued;
+
+  /** The error message if the job failed. */
+  @Column(length = 2048)
+  private String error;
+
+  /** The time the job was first claimed, in milliseconds since the epoch. */
+  @Column
+  private Long started_at;
+
+  /** The time the job was last claimed or updated, in milliseconds since the epoch. A RUNNING job
+   * that has not been updated for a while was abandoned by its worker and may be claimed again. */
+  @Column
+  private long updated_at;
+
+  /** Used to make sure only one worker runs a job. */
+  @Version
+  private long version;
+
+  /** Required DeprovisioningJob class no args constructor. */
+  public DeprovisioningJob() {
+  }
+
+  /** The DeprovisioningJob class constructor that creates a pending job.
+   * @param id the unique job id.
+   * @param email_domain the email domain whose users are deprovisioned, or null for all users.
+   */
+  public DeprovisioningJob(String id, String email_domain) {
+    this.id = id;
+    this.email_domain = email_domain;
+    this.status = PENDING;
+    this.checkpoint = "";
+    this.updated_at = System.currentTimeMillis();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getEmail_domain() {
+    return email_domain;
+  }
+
+  /** Getter and setter for the status column. */
+  public String getStatus() {
+    return status;
+  }
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  /** Getter and setter for the checkpoint column. */
+  public String getCheckpoint() {
+    return checkpoint;
+  }
+  public void setCheckpoint(String checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /** Getter and setter for the processed column. */
+  public long getProcessed() {
+    return processed;
+  }
+  public void setProcessed(long processed) {
+    this.processed = processed;
+  }
+
+  /** Getter and setter for the revoked column. */
+  public long getRevoked() {
+    return revoked;
+  }
+  public void setRevoked(long revoked) {
+    this.revoked = revoked;
+  }
+
+  /** Getter and setter for the queued column. */
+  public long getQueued() {
+    return queued;
+  }
+  public void setQueued(long queued) {
+    this.queued = queued;
+  }
+
+  /** Getter and setter for the error column. */
+  public String getError() {
+    return error;
+  }
+  public void setError(String error) {
+    this.error = error;
+  }
+
+  /** Getter and setter for the started_at column. */
+  public Long getStarted_at() {
+    return started_at;
+  }
+  public void setStarted_at(Long started_at) {
+    this.started_at = started_at;
+  }
+
+  /** Getter and setter for the updated_at column. */
+  public long getUpdated_at() {
+    return updated_at;
+  }
+  public void setUpdated_at(long updated_at) {
+    this.updated_at = updated_at;
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/** An entity class that provides a model to store the response of a completed request, so that a
+ * repeated request with the same idempotency key is answered without repeating its effects. */
+@Entity
+@Table(name = "idempotency_records")
+public class IdempotencyRecord {
+
+  /** The hashed idempotency key. The @Id annotation specifies that this is the primary key. */
+  @Id
+  @Column
+  private String id;
+
+  /** The JSON encoded response of the original request. */
+  @Lob
+  @Column
+  private String response;
+
+  /** The time the original request completed, in milliseconds since the epoch. */
+  @Column
+  private long created_at;
+
+  /** Required IdempotencyRecord class no args constructor. */
+  public IdempotencyRecord() {
+  }
+
+  /** The IdempotencyRecord class constructor that creates a record with the specified parameters.
+   * @param id the hashed idempotency key.
+   * @param response the JSON encoded response of the original request.
+   * @param created_at the time the original request completed.
+   */
+  public IdempotencyRecord(String id, String response, long created_at) {
+    this.id = id;
+    this.response = response;
+    this.created_at = created_at;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getResponse() {
+    return response;
+  }
+
+  public long getCreated_at() {
+    return created_at;
+  }
+}
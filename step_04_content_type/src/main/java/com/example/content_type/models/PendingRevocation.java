@@ -0,0 +1,133 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+/** An entity class that provides a model to store a token waiting to be revoked at Google. The
+ * user's credentials are removed locally right away; the revoke call is persisted so that it is
+ * retried until it succeeds, even across restarts. */
+@Entity
+@Table(name = "pending_revocations")
+public class PendingRevocation {
+  public static final String PENDING = "PENDING";
+  public static final String RUNNING = "RUNNING";
+  public static final String FAILED = "FAILED";
+
+  /** The generated primary key. */
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  /** The id of the user whose token is revoked. */
+  @Column
+  private String user_id;
+
+  /** The token to revoke. Revoking a refresh or access token revokes the whole grant. Cleared
+   * when the revocation is marked FAILED, so that tokens are not kept once they are no longer
+   * needed. */
+  @Column(length = 2048)
+  private String token;
+
+  /** One of PENDING, RUNNING or FAILED. Revoked tokens are deleted. */
+  @Column
+  private String status;
+
+  /** The number of revoke calls made so far. */
+  @Column
+  private int attempts;
+
+  /** The earliest time of the next revoke call, in milliseconds since the epoch. While the row is
+   * RUNNING this is the end of the worker's lease, after which the row may be claimed again; once
+   * it is FAILED, the time it was marked FAILED. */
+  @Column
+  private long next_attempt_at;
+
+  /** The error of the last unsuccessful revoke call. */
+  @Column(length = 2048)
+  private String last_error;
+
+  /** Used to make sure only one worker claims a revocation. */
+  @Version
+  private long version;
+
+  /** Required PendingRevocation class no args constructor. */
+  public PendingRevocation() {
+  }
+
+  /** The PendingRevocation class constructor that creates a revocation due immediately.
+   * @param user_id the id of the user whose token is revoked.
+   * @param token the token to revoke.
+   */
+  public PendingRevocation(String user_id, String token) {
+    this.user_id = user_id;
+    this.token = token;
+    this.status = PENDING;
+    this.next_attempt_at = System.currentTimeMillis();
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getUser_id() {
+    return user_id;
+  }
+
+  /** Getter and setter for the token column. */
+  public String getToken() {
+    return token;
+  }
+  public void setToken(String token) {
+    this.token = token;
+  }
+
+  /** Getter and setter for the status column. */
+  public String getStatus() {
+    return status;
+  }
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  /** Getter and setter for the attempts column. */
+  public int getAttempts() {
+    return attempts;
+  }
+  public void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+
+  /** Getter and setter for the next_attempt_at column. */
+  public long getNext_attempt_at() {
+    return next_attempt_at;
+  }
+  public void setNext_attempt_at(long next_attempt_at) {
+    this.next_attempt_at = next_attempt_at;
+  }
+
+  /** Getter and setter for the last_error column. */
+  public String getLast_error() {
+    return last_error;
+  }
+  public void setLast_error(String last_error) {
+    this.last_error = last_error;
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+/** A user together with their stored credentials, as returned by a single joined query. */
+public class UserAccount {
+  private final User user;
+  private final UserCredential credential;
+
+  /** The UserAccount class constructor.
+   * @param user the user.
+   * @param credential the user's stored credentials, or null if there are none.
+   */
+  public UserAccount(User user, UserCredential credential) {
+    this.user = user;
+    this.credential = credential;
+  }
+
+  public User getUser() {
+    return user;
+  }
+
+  public UserCredential getCredential() {
+    return credential;
+  }
+}
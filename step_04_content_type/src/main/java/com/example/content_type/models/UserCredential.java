@@ -0,0 +1,88 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/** An entity class that provides a model to store a user's OAuth credentials next to their User
+ * row, so that a user and their credentials can be read with a single query. */
+@Entity
+@Table(name = "user_credentials")
+public class UserCredential {
+
+  /** The user's unique Google ID, the same as the id of the users row. The @Id annotation specifies
+   * that this is the primary key. */
+  @Id
+  @Column
+  private String id;
+
+  /** The current access token. */
+  @Column(length = 2048)
+  private String access_token;
+
+  /** The refresh token used to obtain new access tokens. */
+  @Column(length = 2048)
+  private String refresh_token;
+
+  /** The expiration time of the access token, in milliseconds since the epoch. */
+  @Column
+  private Long expiration_time_ms;
+
+  /** The time the credentials were last saved, in milliseconds since the epoch. */
+  @Column
+  private long updated_at;
+
+  /** Required UserCredential class no args constructor. */
+  public UserCredential() {
+  }
+
+  /** The UserCredential class constructor that creates a UserCredential object with the specified
+   * parameters.
+   * @param id the user's unique Google ID.
+   * @param access_token the current access token.
+   * @param refresh_token the refresh token.
+   * @param expiration_time_ms the expiration time of the access token.
+   */
+  public UserCredential(String id, String access_token, String refresh_token,
+      Long expiration_time_ms) {
+    this.id = id;
+    this.access_token = access_token;
+    this.refresh_token = refresh_token;
+    this.expiration_time_ms = expiration_time_ms;
+    this.updated_at = System.currentTimeMillis();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getAccess_token() {
+    return access_token;
+  }
+
+  public String getRefresh_token() {
+    return refresh_token;
+  }
+
+  public Long getExpiration_time_ms() {
+    return expiration_time_ms;
+  }
+
+  public long getUpdated_at() {
+    return updated_at;
+  }
+}
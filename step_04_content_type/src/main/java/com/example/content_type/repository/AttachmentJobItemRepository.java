@@ -0,0 +1,34 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.repository;
+
+import com.example.content_type.models.AttachmentJobItem;
+import java.util.List;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+/** Provides CRUD operations for the AttachmentJobItem class by extending the CrudRepository
+ * interface. */
+@Repository
+public interface AttachmentJobItemRepository extends CrudRepository<AttachmentJobItem, Long> {
+
+  /** Returns the items of a job in selection order.
+   * @param jobId the id of the job.
+   * @return the job's items.
+   */
+  @Query("select i from AttachmentJobItem i where i.job_id = :jobId order by i.position")
+  List<AttachmentJobItem> findByJobId(@Param("jobId") String jobId);
+}
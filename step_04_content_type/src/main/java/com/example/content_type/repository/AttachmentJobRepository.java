@@ -0,0 +1,38 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.repository;
+
+import com.example.content_type.models.AttachmentJob;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+/** Provides CRUD operations for the AttachmentJob class by extending the CrudRepository interface. */
+@Repository
+public interface AttachmentJobRepository extends CrudRepository<AttachmentJob, String> {
+
+  /** Returns the oldest jobs that are waiting to run, including RUNNING jobs whose worker stopped
+   * updating them before the given time, for example because the application was restarted.
+   * @param abandonedBefore RUNNING jobs last updated before this time are returned.
+   * @param pageable limits the number of jobs returned.
+   * @return the claimable jobs.
+   */
+  @Query("select j from AttachmentJob j where j.status = 'PENDING'"
+      + " or (j.status = 'RUNNING' and j.updated_at < :abandonedBefore) order by j.updated_at")
+  List<AttachmentJob> findClaimable(@Param("abandonedBefore") long abandonedBefore,
+      Pageable pageable);
+}
@@ -0,0 +1,61 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.repository;
+
+import com.example.content_type.models.CacheInvalidation;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Provides CRUD operations for the CacheInvalidation class by extending the CrudRepository
+ * interface. */
+@Repository
+public interface CacheInvalidationRepository extends CrudRepository<CacheInvalidation, Long> {
+
+  /** Returns the invalidations written after the given one, in the order they were written.
+   * @param afterId the id of the last invalidation already seen.
+   * @param pageable limits the number of invalidations returned.
+   * @return the next invalidations.
+   */
+  @Query("select i from CacheInvalidation i where i.id > :afterId order by i.id")
+  List<CacheInvalidation> findAfter(@Param("afterId") long afterId, Pageable pageable);
+
+  /** Returns the invalidations written since the given time up to the given one, in id order.
+   * @param createdSince the time in milliseconds since the epoch.
+   * @param upToId the id of the last invalidation already seen.
+   * @return the invalidations written within the window.
+   */
+  @Query("select i from CacheInvalidation i where i.created_at >= :createdSince"
+      + " and i.id <= :upToId order by i.id")
+  List<CacheInvalidation> findCreatedSince(@Param("createdSince") long createdSince,
+      @Param("upToId") long upToId);
+
+  /** Returns the id of the last invalidation written, or null if there are none. */
+  @Query("select max(i.id) from CacheInvalidation i")
+  Long findMaxId();
+
+  /** Deletes the invalidations written before the given time.
+   * @param createdBefore the time in milliseconds since the epoch.
+   * @return the number of invalidations deleted.
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from CacheInvalidation i where i.created_at < :createdBefore")
+  int deleteOlderThan(@Param("createdBefore") long createdBefore);
+}
@@ -0,0 +1,37 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.repository;
+
+import com.example.content_type.models.IdempotencyRecord;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Provides CRUD operations for the IdempotencyRecord class by extending the CrudRepository
+ * interface. */
+@Repository
+public interface IdempotencyRecordRepository extends CrudRepository<IdempotencyRecord, String> {
+
+  /** Deletes the records of requests that completed before the given time.
+   * @param createdBefore records created before this time are deleted.
+   * @return the number of deleted records.
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from IdempotencyRecord r where r.created_at < :createdBefore")
+  int deleteCreatedBefore(@Param("createdBefore") long createdBefore);
+}
@@ -0,0 +1,50 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.repository;
+
+import com.example.content_type.models.PendingRevocation;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Provides CRUD operations for the PendingRevocation class by extending the CrudRepository
+ * interface. */
+@Repository
+public interface PendingRevocationRepository extends CrudRepository<PendingRevocation, Long> {
+
+  /** Returns the revocations that are due, oldest first: PENDING revocations whose backoff has
+   * elapsed and RUNNING revocations whose worker's lease has expired.
+   * @param now the current time in milliseconds since the epoch.
+   * @param pageable limits the number of revocations returned.
+   * @return the claimable revocations.
+   */
+  @Query("select r from PendingRevocation r where r.status <> 'FAILED'"
+      + " and r.next_attempt_at <= :now order by r.next_attempt_at")
+  List<PendingRevocation> findDue(@Param("now") long now, Pageable pageable);
+
+  /** Deletes the revocations marked FAILED before the given time.
+   * @param failedBefore the time in milliseconds since the epoch.
+   * @return the number of revocations deleted.
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from PendingRevocation r where r.status = 'FAILED'"
+      + " and r.next_attempt_at < :failedBefore")
+  int deleteFailedBefore(@Param("failedBefore") long failedBefore);
+}
@@ -0,0 +1,80 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.repository;
+
+import com.example.content_type.models.UserAccount;
+import com.example.content_type.models.UserCredential;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Provides CRUD operations for the UserCredential class by extending the CrudRepository
+ * interface. */
+@Repository
+public interface UserCredentialRepository extends CrudRepository<UserCredential, String> {
+
+  /** Updates a user's credentials in a single statement, unless the stored access token expires
+   * later than the new one. This keeps a slower concurrent refresh from overwriting a newer token.
+   * Credentials with a different refresh token, such as after the user signed in again, are
+   * always written.
+   * @return the number of updated rows: 0 if the user has no stored credentials or the stored
+   * credentials are newer.
+   */
+  @Modifying
+  @Transactional
+  @Query("update UserCredential c set c.access_token = :accessToken,"
+      + " c.refresh_token = :refreshToken, c.expiration_time_ms = :expirationTimeMs,"
+      + " c.updated_at = :updatedAt where c.id = :id and (c.expiration_time_ms is null"
+      + " or :expirationTimeMs is null or c.expiration_time_ms <= :expirationTimeMs"
+      + " or (:refreshToken is not null and (c.refresh_token is null"
+      + " or c.refresh_token <> :refreshToken)))")
+  int updateUnlessNewer(@Param("id") String id, @Param("accessToken") String accessToken,
+      @Param("refreshToken") String refreshToken,
+      @Param("expirationTimeMs") Long expirationTimeMs, @Param("updatedAt") long updatedAt);
+
+  /** Deletes a user's credentials, if they exist.
+   * @return the number of deleted rows.
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from UserCredential c where c.id = :id")
+  int deleteIfExists(@Param("id") String id);
+
+  /** Deletes the credentials of the given users with a single statement.
+   * @return the number of deleted rows.
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from UserCredential c where c.id in :ids")
+  int deleteAllByIds(@Param("ids") Collection<String> ids);
+
+  /** Returns the ids of all users with stored credentials. */
+  @Query("select c.id from UserCredential c")
+  List<String> findAllIds();
+
+  /** Reads a user and their stored credentials with one query.
+   * @param id the user's unique Google ID.
+   * @return the user and their credentials, which are null if none are stored, or empty if the user
+   * does not exist.
+   */
+  @Query("select new com.example.content_type.models.UserAccount(u, c) from User u"
+      + " left join UserCredential c on c.id = u.id where u.id = :id")
+  Optional<UserAccount> findUserAccount(@Param("id") String id);
+}
@@ -14,10 +14,38 @@
 package com.example.content_type.repository;
 
 import com.example.content_type.models.User;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 /** Provides CRUD operations for the User class by extending the CrudRepository interface. */
 @Repository
 public interface UserRepository extends CrudRepository<User, String> {
+
+  /** Returns the next page of users in id order, starting after the given id. Paging by id rather
+   * than by offset keeps each page a single index range scan, however far the caller has read.
+   * @param afterId only users with a greater id are returned. Use "" to start from the beginning.
+   * @param emailPattern a lowercase LIKE pattern the lowercased email must match, or null for all
+   * users.
+   * @param pageable limits the number of users returned.
+   * @return the users after afterId, in id order.
+   */
+  @Query("select u from User u where u.id > :afterId"
+      + " and (:emailPattern is null or lower(u.email) like :emailPattern) order by u.id")
+  List<User> findPageAfter(@Param("afterId") String afterId,
+      @Param("emailPattern") String emailPattern, Pageable pageable);
+
+  /** Deletes the given users with a single statement.
+   * @return the number of deleted rows.
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from User u where u.id in :ids")
+  int deleteAllByIds(@Param("ids") Collection<String> ids);
 }
\ No newline at end of file
@@ -0,0 +1,120 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.services.classroom.model.AddOnContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/** A short-lived cache of the role, student or teacher, that a user has for an item. Resolving the
+ * role requires a getAddOnContext call to Classroom, which would otherwise be repeated every time
+ * the same user opens the same attachment. */
+@Component
+public class AddOnContextCache {
+  public static final String STUDENT = "student";
+  public static final String TEACHER = "teacher";
+
+  /** Entries are keyed by the list (userId, courseId, itemId). A role being loaded is held as an
+   * incomplete future, so that concurrent callers wait for the same Classroom call. */
+  private final AsyncCache<List<String>, String> cache;
+
+  /** AddOnContextCache constructor.
+   * @param meterRegistry the registry used to publish cache hit, miss and eviction metrics.
+   * @param maximumSize the maximum number of resolved roles kept in the cache.
+   * @param timeToLive how long a resolved role may be served before Classroom is asked again.
+   */
+  public AddOnContextCache(MeterRegistry meterRegistry,
+      @Value("${addon.addon-context.maximum-size:50000}") long maximumSize,
+      @Value("${addon.addon-context.time-to-live:60s}") Duration timeToLive) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(timeToLive)
+        .recordStats()
+        .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "addon.contexts");
+  }
+
+  /** Returns the user's role for the item, loading the AddOnContext from Classroom on a miss.
+   * @param userId the id of the current user. If null, the role is loaded without caching.
+   * @param courseId the id of the course the item belongs to.
+   * @param itemId the id of the item the add-on is attached to.
+   * @param loader the call that fetches the AddOnContext from Classroom.
+   * @return STUDENT if the context has a student context, otherwise TEACHER.
+   * @throws IOException if loading the AddOnContext is unsuccessful.
+   */
+  public String getUserContext(String userId, String courseId, String itemId,
+      ContextLoader loader) throws IOException {
+    if (userId == null) {
+      return toUserContext(loader.load());
+    }
+    /** The first caller makes the Classroom call itself, after the cache has mapped the key to
+     * its future: a loader run inside Cache.get would hold a map lock, blocking other keys in the
+     * same bin, for the whole call. Invalidating the key while the call is in flight drops its
+     * result. */
+    List<String> key = List.of(userId, courseId, itemId);
+    CompletableFuture<String> load = new CompletableFuture<>();
+    CompletableFuture<String> userContext = cache.get(key, (k, executor) -> load);
+    if (userContext == load) {
+      try {
+        load.complete(toUserContext(loader.load()));
+      } catch (IOException | RuntimeException e) {
+        load.completeExceptionally(e);
+      }
+    }
+    return await(userContext);
+  }
+
+  /** Drops the user's resolved roles when their credentials are revoked or cleared.
+   * @param event the event naming the user whose credentials are no longer valid.
+   */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    cache.asMap().keySet().removeIf(key -> key.get(0).equals(event.getUserId()));
+  }
+
+  /** Waits for a role being loaded, rethrowing the failure of its Classroom call. */
+  private static String await(CompletableFuture<String> userContext) throws IOException {
+    try {
+      return userContext.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static String toUserContext(AddOnContext addOnContext) {
+    return addOnContext.get("studentContext") != null ? STUDENT : TEACHER;
+  }
+
+  /** Fetches the AddOnContext for a cache miss. */
+  @FunctionalInterface
+  public interface ContextLoader {
+    AddOnContext load() throws IOException;
+  }
+}
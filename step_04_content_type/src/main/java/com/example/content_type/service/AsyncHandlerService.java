@@ -0,0 +1,109 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/** Runs the Google API and database work of request handlers. In "blocking" mode, the default,
+ * the work runs on the Tomcat worker thread and the handler returns the view name. In "async" mode
+ * it runs on the bounded async handler executor and the handler returns a DeferredResult of the
+ * view name; Spring MVC releases the worker thread and renders the view once the result is set.
+ * Handlers read the request and write the response before handing the work over, so the work itself
+ * only touches the session and the model.
+ *
+ * <p>If the executor is full, the request is answered with 503 and counted in the
+ * addon.handlers.rejected counter. If the request times out while its work is still queued, the
+ * work is skipped and counted in the addon.handlers.expired counter. */
+@Service
+public class AsyncHandlerService {
+  private static final String MODE_ASYNC = "async";
+
+  /** Declare the executor to be used in the class constructor. */
+  private final Executor asyncHandlerExecutor;
+
+  private final boolean async;
+  private final Counter rejected;
+  private final Counter expired;
+
+  /** AsyncHandlerService constructor. Uses constructor injection to instantiate the executor.
+   * @param asyncHandlerExecutor the bounded executor that runs handler work in async mode.
+   * @param meterRegistry the registry used to publish rejected requests.
+   * @param mode "blocking" or "async".
+   */
+  public AsyncHandlerService(
+      @Qualifier(ExecutorConfig.ASYNC_HANDLER_EXECUTOR) Executor asyncHandlerExecutor,
+      MeterRegistry meterRegistry,
+      @Value("${addon.handlers.mode:blocking}") String mode) {
+    this.asyncHandlerExecutor = asyncHandlerExecutor;
+    this.async = MODE_ASYNC.equals(mode);
+    this.rejected = Counter.builder("addon.handlers.rejected")
+        .description("Requests rejected because the async handler executor was full")
+        .register(meterRegistry);
+    this.expired = Counter.builder("addon.handlers.expired")
+        .description("Requests that timed out before their work started")
+        .register(meterRegistry);
+  }
+
+  /** Runs the handler work in the configured mode.
+   * @param handler the work, returning the view name.
+   * @return the view name in blocking mode; in async mode a DeferredResult of the view name,
+   * which times out after spring.mvc.async.request-timeout, or a 503 response if the executor is
+   * full.
+   * @throws Exception if the work is unsuccessful in blocking mode. In async mode, the
+   * DeferredResult is set to the exception instead.
+   */
+  public Object execute(Handler handler) throws Exception {
+    if (!async) {
+      return handler.handle();
+    }
+    DeferredResult<Object> result = new DeferredResult<>();
+    AtomicBoolean timedOut = new AtomicBoolean();
+    result.onTimeout(() -> timedOut.set(true));
+    try {
+      asyncHandlerExecutor.execute(() -> {
+        /** Nobody is waiting for the response any more, so do not call Google on its behalf. */
+        if (timedOut.get()) {
+          expired.increment();
+          return;
+        }
+        try {
+          result.setResult(handler.handle());
+        } catch (Exception e) {
+          result.setErrorResult(e);
+        }
+      });
+      return result;
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+  }
+
+  /** The work of a request handler. */
+  @FunctionalInterface
+  public interface Handler {
+    String handle() throws Exception;
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.models.Attachment;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/** An in-process read-through cache in front of the AttachmentRepository. The mapping from an
+ * attachment id to its image does not change once it is saved, so after the first view of an
+ * attachment it is served from memory. The cache is size-bounded and evicts the entries least
+ * likely to be used again. */
+@Component
+public class AttachmentCache {
+  /** An attachment being read is held as an incomplete future, so that concurrent callers wait for
+   * the same read. */
+  private final AsyncCache<String, Attachment> cache;
+
+  /** AttachmentCache constructor.
+   * @param meterRegistry the registry used to publish cache hit, miss and eviction metrics.
+   * @param maximumSize the maximum number of attachments kept in the cache.
+   * @param expireAfterAccess how long an attachment that is not viewed is kept in the cache.
+   */
+  public AttachmentCache(MeterRegistry meterRegistry,
+      @Value("${addon.attachments.cache.maximum-size:100000}") long maximumSize,
+      @Value("${addon.attachments.cache.expire-after-access:24h}") Duration expireAfterAccess) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(expireAfterAccess)
+        .recordStats()
+        .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "attachments");
+  }
+
+  /** Returns the cached attachment, loading it on a miss. Attachments that are not found are not
+   * cached.
+   * @param attachmentId the id of the attachment.
+   * @param loader the function that reads the attachment from persistent storage, returning null
+   * if it does not exist.
+   * @return the attachment, or null if it does not exist.
+   */
+  public Attachment get(String attachmentId, Function<String, Attachment> loader) {
+    /** The first caller reads the attachment itself, without holding a lock of the cache. A
+     * future completed with null is removed, so a missing attachment is not cached, and an
+     * invalidation while the read is in flight drops its result. */
+    CompletableFuture<Attachment> load = new CompletableFuture<>();
+    CompletableFuture<Attachment> attachment = cache.get(attachmentId, (k, executor) -> load);
+    if (attachment == load) {
+      try {
+        load.complete(loader.apply(attachmentId));
+      } catch (RuntimeException e) {
+        load.completeExceptionally(e);
+      }
+    }
+    try {
+      return attachment.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Adds or replaces an attachment that was just saved to persistent storage.
+   * @param attachment the saved attachment.
+   */
+  public void put(Attachment attachment) {
+    cache.put(attachment.getId(), CompletableFuture.completedFuture(attachment));
+  }
+
+  /** Removes an attachment from the cache.
+   * @param attachmentId the id of the attachment to remove.
+   */
+  public void invalidate(String attachmentId) {
+    cache.synchronous().invalidate(attachmentId);
+  }
+}
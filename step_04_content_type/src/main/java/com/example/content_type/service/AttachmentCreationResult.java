@@ -0,0 +1,122 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.services.classroom.model.AddOnAttachment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** The outcome of a create-attachment request: the attachments that were requested and created,
+ * or the id of the job that creates them. It is stored as JSON so that a repeated request can be
+ * answered with the original outcome. A request that failed after creating some of its attachments
+ * is stored as a partial result, so that a retry only creates the others. */
+public class AttachmentCreationResult extends GenericJson {
+
+  /** The number of attachments that were selected. */
+  @Key
+  private Integer numAttachments;
+
+  /** The attachment requests sent to Classroom. */
+  @Key
+  private List<AddOnAttachment> requests;
+
+  /** The attachments returned by Classroom. */
+  @Key
+  private List<AddOnAttachment> responses;
+
+  /** The id of the queued job, if the attachments are created asynchronously. */
+  @Key
+  private String jobId;
+
+  /** For a partial result, the position of each of the responses among the selected attachments.
+   */
+  @Key
+  private List<Integer> createdPositions;
+
+  /** Required no args constructor, used when parsing a stored result. */
+  public AttachmentCreationResult() {
+  }
+
+  /** Creates the result of a request whose attachments were created inline.
+   * @param requests the attachment requests sent to Classroom.
+   * @param responses the attachments returned by Classroom.
+   * @return the AttachmentCreationResult.
+   */
+  public static AttachmentCreationResult created(List<AddOnAttachment> requests,
+      List<AddOnAttachment> responses) {
+    AttachmentCreationResult result = new AttachmentCreationResult();
+    result.numAttachments = requests.size();
+    result.requests = requests;
+    result.responses = responses;
+    return result;
+  }
+
+  /** Creates the result of a request whose attachments were queued as a job.
+   * @param numAttachments the number of attachments that were selected.
+   * @param jobId the id of the queued job.
+   * @return the AttachmentCreationResult.
+   */
+  public static AttachmentCreationResult queued(int numAttachments, String jobId) {
+    AttachmentCreationResult result = new AttachmentCreationResult();
+    result.numAttachments = numAttachments;
+    result.jobId = jobId;
+    return result;
+  }
+
+  /** Creates the result of a request that failed after creating some of its attachments.
+   * @param created the attachments that were created, by their position in the request.
+   * @return the AttachmentCreationResult.
+   */
+  public static AttachmentCreationResult partial(Map<Integer, AddOnAttachment> created) {
+    AttachmentCreationResult result = new AttachmentCreationResult();
+    result.createdPositions = new ArrayList<>(created.keySet());
+    result.responses = new ArrayList<>(created.values());
+    return result;
+  }
+
+  /** Returns whether this is the result of a request that failed after creating some of its
+   * attachments. */
+  public boolean isPartial() {
+    return createdPositions != null;
+  }
+
+  /** Returns the attachments of a partial result by their position in the request. */
+  public Map<Integer, AddOnAttachment> getCreated() {
+    Map<Integer, AddOnAttachment> created = new TreeMap<>();
+    for (int i = 0; createdPositions != null && i < createdPositions.size(); i++) {
+      created.put(createdPositions.get(i), responses.get(i));
+    }
+    return created;
+  }
+
+  public Integer getNumAttachments() {
+    return numAttachments;
+  }
+
+  public List<AddOnAttachment> getRequests() {
+    return requests;
+  }
+
+  public List<AddOnAttachment> getResponses() {
+    return responses;
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+}
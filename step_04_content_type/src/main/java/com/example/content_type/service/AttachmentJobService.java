@@ -0,0 +1,246 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import com.example.content_type.models.AttachmentJob;
+import com.example.content_type.models.AttachmentJobItem;
+import com.example.content_type.repository.AttachmentJobItemRepository;
+import com.example.content_type.repository.AttachmentJobRepository;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.classroom.Classroom;
+import com.google.api.services.classroom.model.AddOnAttachment;
+import com.google.api.services.classroom.model.EmbedUri;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/** Handles the asynchronous creation of attachments. A creation request is stored as a job in the
+ * H2 database and the request returns immediately; a pool of workers claims queued jobs and creates
+ * their attachments in Classroom. Each created attachment is recorded as soon as it exists, so the
+ * page can poll the job's progress.
+ *
+ * <p>A job carries the add-on token Classroom issued when the iframe was opened, which is only
+ * valid for a short time. A job abandoned by its worker, or queued before this node started, is
+ * therefore not resumed but marked FAILED, asking the user to add the attachments again. */
+@Service
+public class AttachmentJobService {
+  private static final Logger logger = LoggerFactory.getLogger(AttachmentJobService.class);
+  private static final String TOKEN_EXPIRED =
+      "The add-on token expired; please add the attachments again.";
+
+  /** Declare the repositories and services to be used in the class constructor. */
+  private final AttachmentJobRepository attachmentJobRepository;
+  private final AttachmentJobItemRepository attachmentJobItemRepository;
+  private final AuthService authService;
+  private final AttachmentService attachmentService;
+  private final Executor attachmentJobExecutor;
+
+  private final boolean enabled;
+  private final int workers;
+  private final long leaseMs;
+
+  /** The number of jobs currently being processed by this node. */
+  private final AtomicInteger runningJobs = new AtomicInteger();
+
+  /** The time this node started, in milliseconds since the epoch. */
+  private final long startedAt = System.currentTimeMillis();
+
+  /** AttachmentJobService constructor. Uses constructor injection to instantiate the repositories,
+   * services and the worker pool.
+   * @param attachmentJobRepository the class that interacts with stored jobs.
+   * @param attachmentJobItemRepository the class that interacts with stored job items.
+   * @param authService the service used to load the job owner's stored credentials.
+   * @param attachmentService the service used to create and save attachments.
+   * @param attachmentJobExecutor the worker pool that processes jobs.
+   * @param enabled whether attachment creation runs asynchronously.
+   * @param workers the number of jobs processed concurrently by this node.
+   * @param leaseMs how long a RUNNING job may go without an update before it is considered
+   * abandoned and claimed again.
+   */
+  public AttachmentJobService(AttachmentJobRepository attachmentJobRepository,
+      AttachmentJobItemRepository attachmentJobItemRepository, AuthService authService,
+      AttachmentService attachmentService,
+      @Qualifier(ExecutorConfig.ATTACHMENT_JOB_EXECUTOR) Executor attachmentJobExecutor,
+      @Value("${addon.attachments.async:false}") boolean enabled,
+      @Value("${addon.attachment-jobs.workers:4}") int workers,
+      @Value("${addon.attachment-jobs.lease-ms:300000}") long leaseMs) {
+    this.attachmentJobRepository = attachmentJobRepository;
+    this.attachmentJobItemRepository = attachmentJobItemRepository;
+    this.authService = authService;
+    this.attachmentService = attachmentService;
+    this.attachmentJobExecutor = attachmentJobExecutor;
+    this.enabled = enabled;
+    this.workers = workers;
+    this.leaseMs = leaseMs;
+  }
+
+  /** Returns whether attachment creation requests should be queued instead of run inline. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Stores a new attachment creation job and its items.
+   * @param userId the id of the user creating the attachments.
+   * @param courseId the id of the course the item belongs to.
+   * @param itemId the id of the item the attachments are added to.
+   * @param addOnToken the add-on token provided by Classroom.
+   * @param viewUri the teacher and student view URI of the attachments.
+   * @param imageFilenames the image filename of each attachment, in selection order.
+   * @return the id of the new job.
+   */
+  @Transactional
+  public String enqueue(String userId, String courseId, String itemId, Object addOnToken,
+      String viewUri, List<String> imageFilenames) {
+    String jobId = UUID.randomUUID().toString();
+    List<AttachmentJobItem> items = new ArrayList<>();
+    for (int i = 1; i <= imageFilenames.size(); i++) {
+      items.add(new AttachmentJobItem(jobId, i, imageFilenames.get(i - 1)));
+    }
+    attachmentJobItemRepository.saveAll(items);
+    attachmentJobRepository.save(new AttachmentJob(jobId, userId, courseId, itemId,
+        addOnToken != null ? addOnToken.toString() : null, viewUri));
+    return jobId;
+  }
+
+  /** Retrieves a job from the AttachmentJobRepository.
+   * @param jobId the id of the job.
+   * @return the job, if it exists.
+   */
+  public Optional<AttachmentJob> getJob(String jobId) {
+    return attachmentJobRepository.findById(jobId);
+  }
+
+  /** Retrieves the items of a job in selection order.
+   * @param jobId the id of the job.
+   * @return the job's items.
+   */
+  public List<AttachmentJobItem> getItems(String jobId) {
+    return attachmentJobItemRepository.findByJobId(jobId);
+  }
+
+  /** Claims queued jobs up to the number of free workers and hands them to the worker pool. A job
+   * is claimed by moving it to RUNNING; if another node claims it first, the version check fails
+   * and the job is skipped. A job whose add-on token has likely expired is marked FAILED instead.
+   */
+  @Scheduled(fixedDelayString = "${addon.attachment-jobs.poll-interval-ms:1000}")
+  public void pollJobs() {
+    if (!enabled) {
+      return;
+    }
+    int capacity = workers - runningJobs.get();
+    if (capacity <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (AttachmentJob job : attachmentJobRepository.findClaimable(now - leaseMs,
+        PageRequest.of(0, capacity))) {
+      /** A RUNNING job was abandoned when its lease expired, typically by a restart. */
+      boolean stale = AttachmentJob.RUNNING.equals(job.getStatus())
+          || job.getUpdated_at() < startedAt;
+      AttachmentJob claimedJob;
+      try {
+        job.setStatus(stale ? AttachmentJob.FAILED : AttachmentJob.RUNNING);
+        job.setError(stale ? TOKEN_EXPIRED : null);
+        job.setUpdated_at(now);
+        claimedJob = attachmentJobRepository.save(job);
+      } catch (ObjectOptimisticLockingFailureException e) {
+        continue;
+      }
+      if (stale) {
+        logger.warn("Attachment job {} was not resumed: its add-on token has expired",
+            claimedJob.getId());
+        continue;
+      }
+      runningJobs.incrementAndGet();
+      try {
+        attachmentJobExecutor.execute(() -> {
+          try {
+            runJob(claimedJob);
+          } finally {
+            runningJobs.decrementAndGet();
+          }
+        });
+      } catch (RuntimeException e) {
+        /** The pool is full; the job is picked up again once its lease expires. */
+        runningJobs.decrementAndGet();
+        logger.warn("Could not start attachment job {}", claimedJob.getId(), e);
+      }
+    }
+  }
+
+  /** Creates the job's remaining attachments one at a time, recording each one as it is created.
+   * @param job the claimed job.
+   */
+  private void runJob(AttachmentJob job) {
+    try {
+      Credential credential = authService.loadFromCredentialDataStore(job.getUser_id());
+      if (credential == null) {
+        throw new IllegalStateException("Do not have the required credentials.");
+      }
+      Classroom classroom = attachmentService.getClassroomService(job.getUser_id(), credential);
+
+      for (AttachmentJobItem item : attachmentJobItemRepository.findByJobId(job.getId())) {
+        if (item.getAttachment_id() != null) {
+          continue;
+        }
+        AddOnAttachment addOnAttachmentRequest = new AddOnAttachment();
+        addOnAttachmentRequest.setTeacherViewUri(new EmbedUri().setUri(job.getView_uri()));
+        addOnAttachmentRequest.setStudentViewUri(new EmbedUri().setUri(job.getView_uri()));
+        addOnAttachmentRequest.setTitle("Attachment " + item.getPosition());
+        AddOnAttachment response = attachmentService.createAddOnAttachment(classroom,
+            job.getCourse_id(), job.getItem_id(), job.getAdd_on_token(), addOnAttachmentRequest);
+
+        attachmentService.saveAttachmentToRepository(response.getId(), item.getImage_filename());
+        item.setAttachment_id(response.getId());
+        attachmentJobItemRepository.save(item);
+
+        /** Renew the lease so that the job is not claimed by another worker. */
+        job.setUpdated_at(System.currentTimeMillis());
+        job = attachmentJobRepository.save(job);
+      }
+      job.setStatus(AttachmentJob.SUCCEEDED);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      /** The lease expired and another worker took the job over and marked it FAILED. */
+      logger.warn("Attachment job {} was claimed by another worker", job.getId());
+      return;
+    } catch (GoogleJsonResponseException e) {
+      job.setStatus(AttachmentJob.FAILED);
+      job.setError(e.getDetails() != null ? e.getDetails().getMessage() : e.getMessage());
+    } catch (Exception e) {
+      logger.warn("Attachment job {} failed", job.getId(), e);
+      job.setStatus(AttachmentJob.FAILED);
+      job.setError(e.getMessage());
+    }
+    job.setUpdated_at(System.currentTimeMillis());
+    try {
+      attachmentJobRepository.save(job);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      logger.warn("Attachment job {} was claimed by another worker", job.getId());
+    }
+  }
+}
@@ -13,39 +13,139 @@
 // the License.
 package com.example.content_type.service;
 
+import com.example.content_type.config.ExecutorConfig;
 import com.example.content_type.models.Attachment;
 import com.example.content_type.repository.AttachmentRepository;
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.classroom.Classroom;
 import com.google.api.services.classroom.ClassroomRequestInitializer;
 import com.google.api.services.classroom.model.AddOnAttachment;
 import com.google.api.services.classroom.model.AddOnContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /** Handles Attachment related implementation logic of requests to the application server. */
 @Service
 public class AttachmentService {
   private static final String APPLICATION_NAME = "Google Classroom Add-ons Java Sample App";
-  private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
-  private final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
   private static final ClassroomRequestInitializer KEY_INITIALIZER = new ClassroomRequestInitializer(System.getenv("GOOGLE_API_KEY"));
 
+  private static final Logger logger = LoggerFactory.getLogger(AttachmentService.class);
+  private static final String CREATE_MODE_BATCH = "batch";
+
   /** Declare AttachmentRepository to be used in the class constructor. */
   private final AttachmentRepository attachmentRepository;
 
+  /** Declare HttpTransportService to be used in the class constructor. */
+  private final HttpTransportService httpTransportService;
+
+  /** Declare ClassroomServiceCache to be used in the class constructor. */
+  private final ClassroomServiceCache classroomServiceCache;
+
+  /** Declare AddOnContextCache to be used in the class constructor. */
+  private final AddOnContextCache addOnContextCache;
+
+  /** Declare AttachmentCache to be used in the class constructor. */
+  private final AttachmentCache attachmentCache;
+
+  /** Declare ClusterInvalidationService to be used in the class constructor. */
+  private final ClusterInvalidationService clusterInvalidationService;
+
+  /** Declare ResilienceService to be used in the class constructor. */
+  private final ResilienceService resilienceService;
+
+  /** Declare TokenRefreshScheduler to be used in the class constructor. */
+  private final TokenRefreshScheduler tokenRefreshScheduler;
+
+  /** Declare the executor that runs Google API calls concurrently. */
+  private final Executor googleApiExecutor;
+
+  /** How attachments are created: "concurrent" individual calls or a single "batch" request. */
+  private final String createMode;
+
+  private final Counter batchRequests;
+  private final Counter batchFallbacks;
+
   /** AttachmentService constructor. Uses constructor injection to instantiate the
-   * AttachmentRepository class.
+   * AttachmentRepository, HttpTransportService and cache classes.
    * @param attachmentRepository the class that interacts with Attachment objects stored in
    * persistent storage.
+   * @param httpTransportService the service that provides the shared HTTP transport.
+   * @param classroomServiceCache the cache of Classroom clients built for signed-in users.
+   * @param addOnContextCache the cache of roles resolved from AddOnContext lookups.
+   * @param attachmentCache the read-through cache in front of the AttachmentRepository.
+   * @param clusterInvalidationService the service that drops saved attachments from other nodes'
+   * caches.
+   * @param resilienceService the service that retries transient Classroom API failures.
+   * @param tokenRefreshScheduler the scheduler that keeps active users' access tokens fresh.
+   * @param googleApiExecutor the bounded executor that runs Google API calls concurrently.
+   * @param createMode "concurrent" to create attachments with concurrent individual calls, or
+   * "batch" to create them with a single Google batch HTTP request.
+   * @param meterRegistry the registry used to publish batch request metrics.
    * @throws Exception if creating AttachmentService is unsuccessful.
    */
-  public AttachmentService(AttachmentRepository attachmentRepository) throws Exception {
+  public AttachmentService(AttachmentRepository attachmentRepository,
+      HttpTransportService httpTransportService, ClassroomServiceCache classroomServiceCache,
+      AddOnContextCache addOnContextCache, AttachmentCache attachmentCache,
+      ClusterInvalidationService clusterInvalidationService, ResilienceService resilienceService,
+      TokenRefreshScheduler tokenRefreshScheduler,
+      @Qualifier(ExecutorConfig.GOOGLE_API_EXECUTOR) Executor googleApiExecutor,
+      @Value("${addon.attachments.create-mode:concurrent}") String createMode,
+      MeterRegistry meterRegistry) throws Exception {
     this.attachmentRepository = attachmentRepository;
+    this.httpTransportService = httpTransportService;
+    this.classroomServiceCache = classroomServiceCache;
+    this.addOnContextCache = addOnContextCache;
+    this.attachmentCache = attachmentCache;
+    this.clusterInvalidationService = clusterInvalidationService;
+    this.resilienceService = resilienceService;
+    this.tokenRefreshScheduler = tokenRefreshScheduler;
+    this.googleApiExecutor = googleApiExecutor;
+    this.createMode = createMode;
+    this.batchRequests = Counter.builder("addon.attachments.batch.requests")
+        .description("Batch requests sent to create add-on attachments")
+        .register(meterRegistry);
+    this.batchFallbacks = Counter.builder("addon.attachments.batch.fallbacks")
+        .description("Rejected batch requests that fell back to individual calls")
+        .register(meterRegistry);
+  }
+
+  /** Returns a Classroom client for the user, reusing a previously built client when the user's
+   * credential has not changed. The user is marked as active so that their access token is
+   * refreshed ahead of expiry.
+   * @param userId the id of the user the credential belongs to. If null, the client is built
+   * without caching.
+   * @param credential the credentials to be passed into the Classroom Builder method. If null, the
+   * client is built without caching.
+   * @return Classroom an instance of Classroom service used to make calls to the API.
+   */
+  public Classroom getClassroomService(String userId, Credential credential) {
+    if (userId == null || credential == null) {
+      return buildClassroomService(credential);
+    }
+    tokenRefreshScheduler.markActive(userId, credential);
+    return classroomServiceCache.get(userId, credential, this::buildClassroomService);
   }
   /**
    * @param credential the credentials to be passed into the Classroom Builder method.
@@ -53,7 +153,8 @@ public class AttachmentService {
    */
   public Classroom buildClassroomService(Credential credential) {
     try {
-      return new Classroom.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
+      return new Classroom.Builder(httpTransportService.getTransport(),
+          httpTransportService.getJsonFactory(), httpTransportService.initializer(credential))
           .setClassroomRequestInitializer(KEY_INITIALIZER)
           .setApplicationName(APPLICATION_NAME)
           .build();
@@ -65,28 +166,223 @@ public class AttachmentService {
 
   public AddOnAttachment createAddOnAttachment(Classroom classroom, String courseId,
        String itemId, Object addOnToken, AddOnAttachment addOnAttachment) throws IOException {
-    return classroom.courses().courseWork().addOnAttachments()
-        .create(
-            courseId,
-            itemId,
-            addOnAttachment)
-        .set("addOnToken", addOnToken)
-        .execute();
+    return resilienceService.executeOnce("classroom.addOnAttachments.create",
+        classroom.courses().courseWork().addOnAttachments()
+            .create(
+                courseId,
+                itemId,
+                addOnAttachment)
+            .set("addOnToken", addOnToken)::execute);
+  }
+
+  /** Creates the add-on attachments in Classroom and saves the created attachments to the
+   * repository in a single batch. Depending on the configured create mode, the attachments are
+   * created with concurrent individual calls or with one Google batch HTTP request. Attachments are
+   * returned in the order they were requested. If any creation fails, the attachments that were
+   * created are still saved and the first failure, in request order, is rethrown. Attachments
+   * already in created, from an earlier attempt, are not created again.
+   * @param classroom the Classroom client used to create the attachments.
+   * @param courseId the id of the course the item belongs to.
+   * @param itemId the id of the item the attachments are added to.
+   * @param addOnToken the add-on token provided by Classroom when the iframe was opened.
+   * @param addOnAttachments the attachments to create.
+   * @param imageFilenames the image filename for each attachment, in the same order.
+   * @param created the attachments already created, by their position in addOnAttachments. The
+   * attachments created by this call are added to it, also when the call fails.
+   * @return the attachments returned by Classroom.
+   * @throws IOException if creating any of the attachments is unsuccessful.
+   */
+  public List<AddOnAttachment> createAttachments(Classroom classroom, String courseId,
+      String itemId, Object addOnToken, List<AddOnAttachment> addOnAttachments,
+      List<String> imageFilenames, Map<Integer, AddOnAttachment> created) throws IOException {
+    List<Integer> positions = new ArrayList<>();
+    List<AddOnAttachment> missing = new ArrayList<>();
+    for (int i = 0; i < addOnAttachments.size(); i++) {
+      if (!created.containsKey(i)) {
+        positions.add(i);
+        missing.add(addOnAttachments.get(i));
+      }
+    }
+    List<CompletableFuture<AddOnAttachment>> futures;
+    if (CREATE_MODE_BATCH.equals(createMode) && missing.size() > 1) {
+      futures = createAddOnAttachmentsInBatch(classroom, courseId, itemId, addOnToken, missing);
+    } else {
+      futures = createAddOnAttachmentsConcurrently(classroom, courseId, itemId, addOnToken,
+          missing);
+    }
+
+    List<Attachment> createdAttachments = new ArrayList<>();
+    Throwable firstFailure = null;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        AddOnAttachment response = futures.get(i).join();
+        created.put(positions.get(i), response);
+        createdAttachments.add(
+            new Attachment(response.getId(), imageFilenames.get(positions.get(i))));
+      } catch (CompletionException e) {
+        if (firstFailure == null) {
+          firstFailure = e.getCause() instanceof UncheckedIOException
+              ? e.getCause().getCause() : e.getCause();
+        }
+      }
+    }
+
+    saveAttachmentsToRepository(createdAttachments);
+    if (firstFailure instanceof IOException) {
+      throw (IOException) firstFailure;
+    } else if (firstFailure instanceof RuntimeException) {
+      throw (RuntimeException) firstFailure;
+    } else if (firstFailure != null) {
+      throw new IOException(firstFailure);
+    }
+    List<AddOnAttachment> responses = new ArrayList<>();
+    for (int i = 0; i < addOnAttachments.size(); i++) {
+      responses.add(created.get(i));
+    }
+    return responses;
+  }
+
+  /** Issues one addOnAttachments.create call per attachment on the Google API executor.
+   * @return a future for each attachment, in request order.
+   */
+  private List<CompletableFuture<AddOnAttachment>> createAddOnAttachmentsConcurrently(
+      Classroom classroom, String courseId, String itemId, Object addOnToken,
+      List<AddOnAttachment> addOnAttachments) {
+    List<CompletableFuture<AddOnAttachment>> futures = new ArrayList<>();
+    for (AddOnAttachment addOnAttachment : addOnAttachments) {
+      try {
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return createAddOnAttachment(classroom, courseId, itemId, addOnToken,
+                addOnAttachment);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }, googleApiExecutor));
+      } catch (RejectedExecutionException e) {
+        /** Report a full executor as this attachment's failure, so the attachments already
+         * submitted are still collected and saved. */
+        futures.add(CompletableFuture.failedFuture(e));
+      }
+    }
+    return futures;
+  }
+
+  /** Packs every addOnAttachments.create call into a single Google batch HTTP request. Each part
+   * completes its own future, so per-attachment successes and failures are reported exactly as in
+   * the concurrent mode. If the batch request as a whole is rejected, the attachments whose parts
+   * did not complete are created with individual calls instead.
+   * @return a future for each attachment, in request order.
+   */
+  private List<CompletableFuture<AddOnAttachment>> createAddOnAttachmentsInBatch(
+      Classroom classroom, String courseId, String itemId, Object addOnToken,
+      List<AddOnAttachment> addOnAttachments) {
+    List<CompletableFuture<AddOnAttachment>> futures = new ArrayList<>();
+    try {
+      BatchRequest batch = classroom.batch(classroom.getRequestFactory().getInitializer());
+      for (AddOnAttachment addOnAttachment : addOnAttachments) {
+        CompletableFuture<AddOnAttachment> future = new CompletableFuture<>();
+        futures.add(future);
+        classroom.courses().courseWork().addOnAttachments()
+            .create(courseId, itemId, addOnAttachment)
+            .set("addOnToken", addOnToken)
+            .queue(batch, new JsonBatchCallback<AddOnAttachment>() {
+              @Override
+              public void onSuccess(AddOnAttachment response, HttpHeaders responseHeaders) {
+                future.complete(response);
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                future.completeExceptionally(new UncheckedIOException(
+                    new GoogleJsonResponseException(new HttpResponseException.Builder(
+                        error.getCode(), error.getMessage(), responseHeaders), error)));
+              }
+            });
+      }
+      batch.execute();
+      batchRequests.increment();
+      return futures;
+    } catch (IOException e) {
+      logger.warn("Batch request was rejected, creating attachments individually.", e);
+      batchFallbacks.increment();
+    }
+
+    /** Retry only the parts that did not receive a response before the batch failed. */
+    List<CompletableFuture<AddOnAttachment>> results = new ArrayList<>();
+    for (int i = 0; i < addOnAttachments.size(); i++) {
+      if (i < futures.size() && futures.get(i).isDone()) {
+        results.add(futures.get(i));
+      } else {
+        results.addAll(createAddOnAttachmentsConcurrently(classroom, courseId, itemId, addOnToken,
+            addOnAttachments.subList(i, i + 1)));
+      }
+    }
+    return results;
   }
 
   public AddOnContext getAddOnContext(Classroom classroom, String courseId, String itemId)
       throws IOException {
-    return classroom.courses().courseWork().getAddOnContext(
-        courseId,
-        itemId
-    ).execute();
+    return resilienceService.execute("classroom.getAddOnContext",
+        classroom.courses().courseWork().getAddOnContext(
+            courseId,
+            itemId
+        )::execute);
+  }
+
+  /** Returns whether the user is viewing the item as a student or as a teacher. The role is cached
+   * briefly so that repeated views of the same item do not each call Classroom.
+   * @param userId the id of the current user.
+   * @param classroom the Classroom client used on a cache miss.
+   * @param courseId the id of the course the item belongs to.
+   * @param itemId the id of the item the add-on is attached to.
+   * @return AddOnContextCache.STUDENT or AddOnContextCache.TEACHER.
+   * @throws IOException if loading the AddOnContext is unsuccessful.
+   */
+  public String getUserContext(String userId, Classroom classroom, String courseId,
+      String itemId) throws IOException {
+    return addOnContextCache.getUserContext(userId, courseId, itemId,
+        () -> getAddOnContext(classroom, courseId, itemId));
   }
 
+  /** Returns the attachment with the given id, reading it from the repository only on the first
+   * request.
+   * @param attachmentId the id of the attachment.
+   * @return the attachment.
+   * @throws NoSuchElementException if the attachment does not exist.
+   */
   public Attachment getAttachmentFromRepository(String attachmentId) {
-    return attachmentRepository.findById(attachmentId).get();
+    Attachment attachment = attachmentCache.get(attachmentId,
+        id -> attachmentRepository.findById(id).orElse(null));
+    if (attachment == null) {
+      throw new NoSuchElementException("No attachment found with id " + attachmentId);
+    }
+    return attachment;
   }
 
+  /** Saves the attachment to the repository and writes it through to the cache.
+   * @param attachmentId the id of the attachment returned by Classroom.
+   * @param image_filename the filename of the image shown by the attachment.
+   * @return the saved attachment.
+   */
   public Attachment saveAttachmentToRepository(String attachmentId, String image_filename) {
-    return attachmentRepository.save(new Attachment(attachmentId, image_filename));
+    Attachment attachment = attachmentRepository.save(new Attachment(attachmentId, image_filename));
+    attachmentCache.put(attachment);
+    clusterInvalidationService.publish(ClusterInvalidationService.ATTACHMENTS, attachmentId);
+    return attachment;
+  }
+
+  /** Saves the attachments to the repository in one batch and writes them through to the cache.
+   * @param attachments the attachments to save.
+   */
+  public void saveAttachmentsToRepository(List<Attachment> attachments) {
+    if (attachments.isEmpty()) {
+      return;
+    }
+    for (Attachment attachment : attachmentRepository.saveAll(attachments)) {
+      attachmentCache.put(attachment);
+      clusterInvalidationService.publish(ClusterInvalidationService.ATTACHMENTS,
+          attachment.getId());
+    }
   }
 }
\ No newline at end of file
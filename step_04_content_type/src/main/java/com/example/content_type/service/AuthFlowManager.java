@@ -0,0 +1,218 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.ContentTypeApplication;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.util.store.DataStoreFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/** Owns the lifecycle of the GoogleAuthorizationCodeFlow used by the application. The client
+ * secrets, the credential data store and the flow are built once and shared by every request. When
+ * the client secret file changes on disk, a new flow is built in the background and swapped in
+ * atomically; requests that already hold the previous flow finish with it undisturbed. */
+@Component
+public class AuthFlowManager {
+  private static final Logger logger = LoggerFactory.getLogger(AuthFlowManager.class);
+  private static final String CLIENT_SECRET_FILE = "client_secret.json";
+
+  /** The client secrets and flow that are currently in use, always replaced as a pair. */
+  private final AtomicReference<FlowState> state = new AtomicReference<>();
+
+  /** Serializes (re)builds so that concurrent reload checks do not build the flow twice. */
+  private final ReentrantLock buildLock = new ReentrantLock();
+
+  /** Declare HttpTransportService to be used in the class constructor. */
+  private final HttpTransportService httpTransportService;
+
+  private final Timer initialBuildTimer;
+  private final Timer reloadTimer;
+
+  /** The data store factory that persists credentials, kept across reloads. */
+  private final DataStoreFactory dataStoreFactory;
+
+  /** AuthFlowManager constructor.
+   * @param httpTransportService the service that provides the shared HTTP transport.
+   * @param dataStoreFactory the data store factory that persists credentials.
+   * @param meterRegistry the registry used to publish flow build and reload timings.
+   */
+  public AuthFlowManager(HttpTransportService httpTransportService,
+      DataStoreFactory dataStoreFactory, MeterRegistry meterRegistry) {
+    this.httpTransportService = httpTransportService;
+    this.dataStoreFactory = dataStoreFactory;
+    this.initialBuildTimer = Timer.builder("addon.auth.flow.build")
+        .description("Time taken to read client secrets and build the authorization code flow")
+        .tag("reason", "initial")
+        .register(meterRegistry);
+    this.reloadTimer = Timer.builder("addon.auth.flow.build")
+        .description("Time taken to read client secrets and build the authorization code flow")
+        .tag("reason", "reload")
+        .register(meterRegistry);
+  }
+
+  /** Returns the current authorization code flow, building it on first use.
+   * @return the shared GoogleAuthorizationCodeFlow.
+   * @throws Exception if reading client secrets or building the flow is unsuccessful.
+   */
+  public GoogleAuthorizationCodeFlow getFlow() throws Exception {
+    return current().flow;
+  }
+
+  /** Returns the client secrets that the current flow was built with.
+   * @return the shared GoogleClientSecrets.
+   * @throws Exception if reading client secrets or building the flow is unsuccessful.
+   */
+  public GoogleClientSecrets getClientSecrets() throws Exception {
+    return current().clientSecrets;
+  }
+
+  /** Returns the data store factory that persists credentials. The factory is kept across reloads
+   * so that stored credentials are unaffected by a change of client secrets.
+   * @return the shared DataStoreFactory.
+   */
+  public DataStoreFactory getDataStoreFactory() {
+    return dataStoreFactory;
+  }
+
+  /** Returns a consistent snapshot of the client secrets and the flow built from them, so that a
+   * caller needing both never mixes values from before and after a reload.
+   * @return the current FlowState.
+   * @throws Exception if reading client secrets or building the flow is unsuccessful.
+   */
+  public FlowState current() throws Exception {
+    FlowState flowState = state.get();
+    if (flowState != null) {
+      return flowState;
+    }
+    buildLock.lock();
+    try {
+      if (state.get() == null) {
+        long start = System.nanoTime();
+        state.set(build());
+        initialBuildTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+      return state.get();
+    } finally {
+      buildLock.unlock();
+    }
+  }
+
+  /** Periodically checks whether the client secret file has changed on disk and, if so, builds a
+   * new flow and swaps it in. Only secrets loaded from an exploded classpath directory can be
+   * reloaded; secrets packaged inside a jar never change while the application is running. */
+  @Scheduled(fixedDelayString = "${addon.client-secret.reload-interval-ms:30000}")
+  public void reloadIfChanged() {
+    FlowState flowState = state.get();
+    if (flowState == null || flowState.sourceFile == null
+        || flowState.sourceFile.lastModified() == flowState.lastModified) {
+      return;
+    }
+    if (!buildLock.tryLock()) {
+      return;
+    }
+    try {
+      long start = System.nanoTime();
+      state.set(build());
+      reloadTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      logger.info("Reloaded client secrets from {}", flowState.sourceFile);
+    } catch (Exception e) {
+      /** Keep serving with the previous flow; the next check retries the reload. */
+      logger.warn("Could not reload client secrets, keeping the current flow.", e);
+    } finally {
+      buildLock.unlock();
+    }
+  }
+
+  /** Reads the client secret file and builds a new flow around the shared data store factory.
+   * @return the newly built FlowState.
+   * @throws Exception if reading client secrets or building the flow is unsuccessful.
+   */
+  private FlowState build() throws Exception {
+    URL resource = ContentTypeApplication.class.getClassLoader().getResource(CLIENT_SECRET_FILE);
+    if (resource == null) {
+      throw new FileNotFoundException("Client secret file not found: " + CLIENT_SECRET_FILE);
+    }
+    File sourceFile = toFile(resource);
+    long lastModified = sourceFile != null ? sourceFile.lastModified() : 0L;
+
+    GoogleClientSecrets clientSecrets;
+    try (InputStream in = resource.openStream()) {
+      clientSecrets = GoogleClientSecrets.load(httpTransportService.getJsonFactory(),
+          new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
+        httpTransportService.getTransport(),
+        httpTransportService.getJsonFactory(),
+        clientSecrets,
+        AuthService.getScopes())
+        .setAccessType("offline")
+        .setRequestInitializer(httpTransportService.initializer(null))
+        .setDataStoreFactory(getDataStoreFactory())
+        .build();
+    return new FlowState(clientSecrets, flow, sourceFile, lastModified);
+  }
+
+  /** Returns the file behind a classpath resource, or null if the resource is not a plain file. */
+  private static File toFile(URL resource) {
+    if (!"file".equals(resource.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(resource.toURI());
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  /** An immutable pairing of client secrets and the flow built from them. */
+  public static final class FlowState {
+    private final GoogleClientSecrets clientSecrets;
+    private final GoogleAuthorizationCodeFlow flow;
+    private final File sourceFile;
+    private final long lastModified;
+
+    private FlowState(GoogleClientSecrets clientSecrets, GoogleAuthorizationCodeFlow flow,
+        File sourceFile, long lastModified) {
+      this.clientSecrets = clientSecrets;
+      this.flow = flow;
+      this.sourceFile = sourceFile;
+      this.lastModified = lastModified;
+    }
+
+    public GoogleClientSecrets getClientSecrets() {
+      return clientSecrets;
+    }
+
+    public GoogleAuthorizationCodeFlow getFlow() {
+      return flow;
+    }
+  }
+}
@@ -13,54 +13,38 @@
 // the License.
 package com.example.content_type.service;
 
-import com.example.content_type.ContentTypeApplication;
+import com.example.content_type.events.CredentialsInvalidatedEvent;
 import com.example.content_type.models.User;
+import com.example.content_type.models.UserAccount;
+import com.example.content_type.models.UserCredential;
+import com.example.content_type.repository.UserCredentialRepository;
 import com.example.content_type.repository.UserRepository;
 import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
 import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken.Payload;
-import com.google.api.client.googleapis.auth.oauth2.GoogleIdTokenVerifier;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.services.oauth2.Oauth2;
 import com.google.api.services.oauth2.model.Userinfo;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Optional;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 
 /** Handles the implementation logic of requests to the application server. */
 @Service
 public class AuthService {
   private static final String REDIRECT_URI = "https://localhost:5000/callback";
-  private static final String CLIENT_SECRET_FILE = "client_secret.json";
-  private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
-  private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
-  private static final File dataDirectory = new File("credentialStore");
 
   private static final String[] REQUIRED_SCOPES = {
       "https://www.googleapis.com/auth/userinfo.profile",
@@ -72,13 +56,80 @@ public class AuthService {
   /** Declare UserRepository to be used in the class constructor. */
   private final UserRepository userRepository;
 
+  /** Declare UserCredentialRepository to be used in the class constructor. */
+  private final UserCredentialRepository userCredentialRepository;
+
+  /** Declare AuthFlowManager to be used in the class constructor. */
+  private final AuthFlowManager authFlowManager;
+
+  /** Declare HttpTransportService to be used in the class constructor. */
+  private final HttpTransportService httpTransportService;
+
+  /** Declare ApplicationEventPublisher to be used in the class constructor. */
+  private final ApplicationEventPublisher eventPublisher;
+
+  /** Declare ResilienceService to be used in the class constructor. */
+  private final ResilienceService resilienceService;
+
+  /** Declare TokenRefreshCoordinator to be used in the class constructor. */
+  private final TokenRefreshCoordinator tokenRefreshCoordinator;
+
+  /** Declare IdTokenVerifierService to be used in the class constructor. */
+  private final IdTokenVerifierService idTokenVerifierService;
+
+  /** Declare UserinfoCache to be used in the class constructor. */
+  private final UserinfoCache userinfoCache;
+
+  /** Declare RevocationService to be used in the class constructor. */
+  private final RevocationService revocationService;
+
+  /** Declare CredentialCache to be used in the class constructor. */
+  private final CredentialCache credentialCache;
+
+  /** Declare the near cache of users and the service that invalidates it on other nodes. */
+  private final UserAccountCache userAccountCache;
+  private final ClusterInvalidationService clusterInvalidationService;
+
   /** AuthService constructor. Uses constructor injection to instantiate the
-   * UserRepository class.
+   * UserRepository, AuthFlowManager and HttpTransportService classes.
    * @param userRepository the class that interacts with User objects stored in
    * persistent storage.
+   * @param userCredentialRepository the class that interacts with credentials stored next to
+   * User objects.
+   * @param authFlowManager the class that owns the shared authorization code flow.
+   * @param httpTransportService the service that provides the shared HTTP transport.
+   * @param eventPublisher the publisher used to announce revoked or cleared credentials.
+   * @param resilienceService the service that retries transient OAuth endpoint failures.
+   * @param tokenRefreshCoordinator the class that coalesces concurrent refreshes of a user's
+   * access token.
+   * @param idTokenVerifierService the service that verifies ID tokens with cached signing keys.
+   * @param userinfoCache the per-user cache of Userinfo.
+   * @param revocationService the service that revokes tokens at Google in the background.
+   * @param credentialCache the live credentials of signed-in users, shared by their sessions.
+   * @param userAccountCache the near cache of users and their stored credentials.
+   * @param clusterInvalidationService the service that drops changed users from other nodes'
+   * caches.
    */
-  public AuthService(UserRepository userRepository) {
+  public AuthService(UserRepository userRepository,
+      UserCredentialRepository userCredentialRepository, AuthFlowManager authFlowManager,
+      HttpTransportService httpTransportService, ApplicationEventPublisher eventPublisher,
+      ResilienceService resilienceService, TokenRefreshCoordinator tokenRefreshCoordinator,
+      IdTokenVerifierService idTokenVerifierService, UserinfoCache userinfoCache,
+      RevocationService revocationService, CredentialCache credentialCache,
+      UserAccountCache userAccountCache, ClusterInvalidationService clusterInvalidationService) {
     this.userRepository = userRepository;
+    this.userCredentialRepository = userCredentialRepository;
+    this.authFlowManager = authFlowManager;
+    this.httpTransportService = httpTransportService;
+    this.eventPublisher = eventPublisher;
+    this.resilienceService = resilienceService;
+    this.tokenRefreshCoordinator = tokenRefreshCoordinator;
+    this.idTokenVerifierService = idTokenVerifierService;
+    this.userinfoCache = userinfoCache;
+    this.revocationService = revocationService;
+    this.credentialCache = credentialCache;
+    this.userAccountCache = userAccountCache;
+    this.clusterInvalidationService = clusterInvalidationService;
   }
 
   /** Creates and returns a Collection object with all requested scopes.
@@ -88,54 +139,29 @@ public class AuthService {
     return new ArrayList<>(Arrays.asList(REQUIRED_SCOPES));
   }
 
-  /** Reads the client secret file downloaded from GCP.
+  /** Returns the client secrets downloaded from GCP. The file is read once by the AuthFlowManager
+   * and re-read only when it changes on disk.
    * @return GoogleClientSecrets read in from client secret file.
    * @throws Exception if loading client secrets is unsuccessful. */
   public GoogleClientSecrets getClientSecrets() throws Exception {
-    try {
-      InputStream in = ContentTypeApplication.class.getClassLoader()
-          .getResourceAsStream(CLIENT_SECRET_FILE);
-      if (in == null) {
-        throw new FileNotFoundException("Client secret file not found: " + CLIENT_SECRET_FILE);
-      }
-      GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY,
-          new InputStreamReader(in));
-      return clientSecrets;
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw e;
-    }
+    return authFlowManager.getClientSecrets();
   }
 
-  /** Creates and returns FileDataStoreFactory object to store credentials.
-   * @return FileDataStoreFactory dataStore used to save and obtain users ids mapped to Credentials.
+  /** Returns the shared DataStoreFactory object used to store credentials.
+   * @return DataStoreFactory dataStore used to save and obtain users ids mapped to Credentials.
    * @throws IOException if creating the dataStore is unsuccessful.
    */
-  public FileDataStoreFactory getCredentialDataStore() throws IOException {
-    FileDataStoreFactory dataStore = new FileDataStoreFactory(dataDirectory);
-    return dataStore;
+  public DataStoreFactory getCredentialDataStore() throws IOException {
+    return authFlowManager.getDataStoreFactory();
   }
 
-  /** Builds and returns authorization code flow.
+  /** Returns the shared authorization code flow.
    * @return GoogleAuthorizationCodeFlow object used to retrieve an access token and refresh token
    * for the application.
    * @throws Exception if reading client secrets or building code flow object is unsuccessful.
    */
   public GoogleAuthorizationCodeFlow getFlow() throws Exception {
-    try {
-      GoogleAuthorizationCodeFlow authorizationCodeFlow = new GoogleAuthorizationCodeFlow.Builder(
-          HTTP_TRANSPORT,
-          JSON_FACTORY,
-          getClientSecrets(),
-          getScopes())
-          .setAccessType("offline")
-          .setDataStoreFactory(getCredentialDataStore())
-          .build();
-      return authorizationCodeFlow;
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw e;
-    }
+    return authFlowManager.getFlow();
   }
 
   /** Builds and returns a map with the authorization URL, which allows the user to give the app
@@ -177,22 +203,23 @@ public class AuthService {
    */
   public Credential getAndSaveCredentials(String authorizationCode) throws Exception {
     try {
-      GoogleAuthorizationCodeFlow flow = getFlow();
-      GoogleClientSecrets googleClientSecrets = getClientSecrets();
-      TokenResponse tokenResponse = flow.newTokenRequest(authorizationCode)
-          .setClientAuthentication(new ClientParametersAuthentication(
-              googleClientSecrets.getWeb().getClientId(),
-              googleClientSecrets.getWeb().getClientSecret()))
-          .setRedirectUri(REDIRECT_URI).execute();
+      /** Use a single snapshot so the flow and secrets match even if they are reloaded. */
+      AuthFlowManager.FlowState flowState = authFlowManager.current();
+      GoogleAuthorizationCodeFlow flow = flowState.getFlow();
+      GoogleClientSecrets googleClientSecrets = flowState.getClientSecrets();
+      TokenResponse tokenResponse = resilienceService.executeOnce("oauth2.token",
+          flow.newTokenRequest(authorizationCode)
+              .setClientAuthentication(new ClientParametersAuthentication(
+                  googleClientSecrets.getWeb().getClientId(),
+                  googleClientSecrets.getWeb().getClientSecret()))
+              .setRedirectUri(REDIRECT_URI)::execute);
 
       // Obtaining the id_token will help determine which user signed in to the application.
       String idTokenString = tokenResponse.get("id_token").toString();
 
-      // Validate the id_token using the GoogleIdTokenVerifier object.
-      GoogleIdTokenVerifier googleIdTokenVerifier = new GoogleIdTokenVerifier.Builder(HTTP_TRANSPORT, JSON_FACTORY)
-          .setAudience(Collections.singletonList(googleClientSecrets.getWeb().getClientId()))
-          .build();
-      GoogleIdToken idToken = googleIdTokenVerifier.verify(idTokenString);
+      // Validate the id_token with the shared verifier and its cached signing keys.
+      GoogleIdToken idToken = idTokenVerifierService.verify(idTokenString,
+          googleClientSecrets.getWeb().getClientId());
 
       if (idToken == null) {
         throw new Exception("Invalid ID token.");
@@ -202,8 +229,19 @@ public class AuthService {
       Payload payload = idToken.getPayload();
       String userId = payload.getSubject();
 
-      // Save the user id and credentials to the configured FileDataStoreFactory.
-      Credential credential = flow.createAndStoreCredential(tokenResponse, userId);
+      // Save the user id and credentials to the configured credential data store.
+      Credential credential = tokenRefreshCoordinator.newCredential(flow, userId)
+          .setFromTokenResponse(tokenResponse);
+      flow.getCredentialDataStore().set(userId, new StoredCredential(credential));
+      credentialCache.put(userId, credential);
+      userAccountCache.invalidate(userId);
+      clusterInvalidationService.publish(ClusterInvalidationService.USERS, userId);
+
+      // The email scope puts the user's email in the verified id_token, so the Userinfo endpoint
+      // does not need to be called to identify the user.
+      if (payload.getEmail() != null) {
+        userinfoCache.put(userId, toUserinfo(payload));
+      }
 
       return credential;
     } catch (Exception e) {
@@ -220,15 +258,78 @@ public class AuthService {
   public Credential loadFromCredentialDataStore(String userId) throws Exception {
     try {
       GoogleAuthorizationCodeFlow flow = getFlow();
-      Credential credential = flow.loadCredential(userId);
-      return credential;
+      StoredCredential storedCredential = flow.getCredentialDataStore().get(userId);
+      if (storedCredential == null) {
+        return null;
+      }
+      return tokenRefreshCoordinator.newCredential(flow, userId)
+          .setAccessToken(storedCredential.getAccessToken())
+          .setRefreshToken(storedCredential.getRefreshToken())
+          .setExpirationTimeMilliseconds(storedCredential.getExpirationTimeMilliseconds());
     } catch (Exception e) {
       e.printStackTrace();
       throw e;
     }
   }
 
-  /** Obtains the Userinfo object by passing in the required credentials.
+  /** Retrieves a user together with their stored credentials, from the near cache if possible.
+   * When credentials are stored in the database this is a single joined query; otherwise the user
+   * is read from the database and the credentials are read from the credential data store.
+   * @param userId the id of the user.
+   * @return the user and their credentials, or null if the user does not exist.
+   * @throws Exception if building flow object or reading the credentials is unsuccessful.
+   */
+  public UserAccount getUserAccount(String userId) throws Exception {
+    if (userId == null) {
+      return null;
+    }
+    return userAccountCache.get(userId, () -> {
+      if (!(authFlowManager.getDataStoreFactory() instanceof JpaDataStoreFactory)) {
+        User user = getUser(userId);
+        return user != null ? new UserAccount(user, null) : null;
+      }
+      return userCredentialRepository.findUserAccount(userId).orElse(null);
+    });
+  }
+
+  /** Returns the live Credential of a user, shared by all of the user's sessions. It is loaded
+   * from the credential data store when it is not cached.
+   * @param userId the id of the user, as held by the session.
+   * @return the user's Credential, or null if the id is null or no credentials are stored.
+   * @throws Exception if building flow object or reading the credentials is unsuccessful.
+   */
+  public Credential getCredential(String userId) throws Exception {
+    if (userId == null) {
+      return null;
+    }
+    return credentialCache.get(userId, () -> loadFromCredentialDataStore(userId));
+  }
+
+  /** Returns the stored credentials of a user read with getUserAccount.
+   * @param userAccount the user and, if read from the database, their stored credentials.
+   * @return the user's Credential, or null if no credentials are stored.
+   * @throws Exception if building flow object or reading the credentials is unsuccessful.
+   */
+  public Credential getCredential(UserAccount userAccount) throws Exception {
+    String userId = userAccount.getUser().getId();
+    if (!(authFlowManager.getDataStoreFactory() instanceof JpaDataStoreFactory)) {
+      return getCredential(userId);
+    }
+    UserCredential userCredential = userAccount.getCredential();
+    if (userCredential == null) {
+      return null;
+    }
+    /** Build the Credential from the joined row, without reading it again, unless it is cached. */
+    return credentialCache.get(userId, () ->
+        tokenRefreshCoordinator.newCredential(getFlow(), userId)
+            .setAccessToken(userCredential.getAccess_token())
+            .setRefreshToken(userCredential.getRefresh_token())
+            .setExpirationTimeMilliseconds(userCredential.getExpiration_time_ms()));
+  }
+
+  /** Obtains the Userinfo object by passing in the required credentials. The Userinfo is served
+   * from the per-user cache, which is filled from the verified ID token at sign-in, and fetched
+   * from the Userinfo endpoint only on a miss.
    * @param credentials retrieved from the authorization flow.
    * @return the Userinfo object for the currently signed-in user.
    * @throws Exception if creating UserInfo service or obtaining the Userinfo object is
@@ -236,9 +337,12 @@ public class AuthService {
    */
   public Userinfo getUserInfo(Credential credentials) throws Exception {
     try {
-      Oauth2 userInfoService = new Oauth2.Builder(new NetHttpTransport(), new GsonFactory(),
-          credentials).build();
-      Userinfo userinfo = userInfoService.userinfo().get().execute();
+      Oauth2 userInfoService = new Oauth2.Builder(httpTransportService.getTransport(),
+          httpTransportService.getJsonFactory(), httpTransportService.initializer(credentials))
+          .build();
+      Userinfo userinfo = userinfoCache.get(TokenRefreshCoordinator.getUserId(credentials),
+          () -> resilienceService.execute("oauth2.userinfo",
+              userInfoService.userinfo().get()::execute));
       return userinfo;
     } catch (Exception e) {
       e.printStackTrace();
@@ -246,31 +350,60 @@ public class AuthService {
     }
   }
 
-  /** Revokes the app's permissions to the user's account.
+  /** Builds a Userinfo from the claims of a verified ID token. The profile claims are present when
+   * the profile scope was granted.
+   * @param payload the payload of the verified ID token.
+   * @return the Userinfo with the user's id, email and available profile fields.
+   */
+  private static Userinfo toUserinfo(Payload payload) {
+    return new Userinfo()
+        .setId(payload.getSubject())
+        .setEmail(payload.getEmail())
+        .setVerifiedEmail(payload.getEmailVerified())
+        .setHd(payload.getHostedDomain())
+        .setName((String) payload.get("name"))
+        .setGivenName((String) payload.get("given_name"))
+        .setFamilyName((String) payload.get("family_name"))
+        .setPicture((String) payload.get("picture"))
+        .setLocale((String) payload.get("locale"));
+  }
+
+  /** Revokes the app's permissions to the user's account. The credentials are removed from the
+   * credential data store and from every cache right away; the call to Google's revoke endpoint is
+   * queued and sent in the background by the RevocationService, which retries it until it succeeds.
    * @param credentials retrieved from the authorization flow.
-   * @return response entity returned from the HTTP call to obtain response information.
-   * @throws RestClientException if the POST request to the revoke endpoint is unsuccessful.
+   * @param login_hint the id of the user whose access is revoked.
+   * @throws Exception if queuing the revocation or deleting the stored credentials is
+   * unsuccessful.
    */
-  public ResponseEntity<String> revokeCredentials(Credential credentials, String login_hint) throws Exception {
+  public void revokeCredentials(Credential credentials, String login_hint) throws Exception {
     try {
-      String accessToken = credentials.getAccessToken();
-      String url = "https://oauth2.googleapis.com/revoke?token=" + accessToken;
-
-      HttpHeaders httpHeaders = new HttpHeaders();
-      httpHeaders.setContentType(MediaType.APPLICATION_FORM_URLENCODED_VALUE);
-      HttpEntity<Object> httpEntity = new HttpEntity<Object>(httpHeaders);
-      ResponseEntity<String> responseEntity = new RestTemplate().exchange(url, HttpMethod.POST,
-          httpEntity, String.class);
+      /** Revoking the refresh token revokes the whole grant, even once the access token expired. */
+      String token = credentials.getRefreshToken() != null
+          ? credentials.getRefreshToken() : credentials.getAccessToken();
+      if (token != null) {
+        revocationService.enqueue(login_hint, token);
+      }
 
       GoogleAuthorizationCodeFlow flow = getFlow();
       flow.getCredentialDataStore().delete(login_hint);
-      return responseEntity;
+      invalidateCredentials(login_hint);
     } catch (Exception e) {
       e.printStackTrace();
       throw e;
     }
   }
 
+  /** Notifies components holding objects built from the user's credentials, such as cached
+   * Classroom clients, that the credentials have been revoked or cleared.
+   * @param userId the id of the user whose credentials are no longer valid.
+   */
+  public void invalidateCredentials(String userId) {
+    if (userId != null) {
+      eventPublisher.publishEvent(new CredentialsInvalidatedEvent(userId));
+    }
+  }
+
   /** Retrieves the User from the UserRepository.
    * @param id the id of the current user
    * @return User the database entry corresponding to the current user, or null if the user does
@@ -303,12 +436,21 @@ public class AuthService {
           storedUser.setEmail(userinfo.getEmail());
         }
         userRepository.save(storedUser);
+        userChanged(login_hint.toString());
+        userChanged(storedUser.getId());
       } else if (credential != null && userinfo != null) {
         User newUser = new User(
             userinfo.getId(),
             userinfo.getEmail()
         );
         userRepository.save(newUser);
+        userChanged(newUser.getId());
       }
     }
+
+    /** Drops a saved user from the near caches of this and the other nodes. */
+    private void userChanged(String userId) {
+      userAccountCache.invalidate(userId);
+      clusterInvalidationService.publish(ClusterInvalidationService.USERS, userId);
+    }
 }
@@ -0,0 +1,127 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.classroom.Classroom;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.function.Function;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/** A bounded cache of built Classroom clients, keyed by user and credential identity. A Classroom
+ * client is safe to share between requests, so building one per request only adds allocation and
+ * initialization cost to the attachment views. */
+@Component
+public class ClassroomServiceCache {
+  private final Cache<ClientKey, Classroom> cache;
+
+  /** ClassroomServiceCache constructor.
+   * @param meterRegistry the registry used to publish cache hit, miss and eviction metrics.
+   * @param maximumSize the maximum number of clients kept in the cache.
+   * @param expireAfterAccess how long an unused client is kept in the cache.
+   */
+  public ClassroomServiceCache(MeterRegistry meterRegistry,
+      @Value("${addon.classroom-clients.maximum-size:10000}") long maximumSize,
+      @Value("${addon.classroom-clients.expire-after-access:30m}") Duration expireAfterAccess) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(expireAfterAccess)
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "classroom.clients");
+  }
+
+  /** Returns the cached Classroom client for the user and credential, building it if needed.
+   * @param userId the id of the user the credential belongs to.
+   * @param credential the credential the client authorizes its requests with.
+   * @param builder the function used to build a new client on a cache miss.
+   * @return the Classroom client.
+   */
+  public Classroom get(String userId, Credential credential,
+      Function<Credential, Classroom> builder) {
+    return cache.get(new ClientKey(userId, credential), key -> builder.apply(credential));
+  }
+
+  /** Removes every client built for the given user.
+   * @param userId the id of the user whose clients should be removed.
+   */
+  public void invalidate(String userId) {
+    cache.asMap().keySet().removeIf(key -> key.userId.equals(userId));
+  }
+
+  /** Drops the user's clients when their credentials are revoked or cleared.
+   * @param event the event naming the user whose credentials are no longer valid.
+   */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    invalidate(event.getUserId());
+  }
+
+  /** Identifies a client by its user and the refresh token of the credential it was built with.
+   * Reloading a credential from the data store keeps the same refresh token and therefore reuses
+   * the client, while signing in again yields a new refresh token and a new client. Only a SHA-256
+   * hash of the refresh token is kept, so the token does not show up in heap dumps of the keys. */
+  private static final class ClientKey {
+    private final String userId;
+    private final String credentialId;
+
+    private ClientKey(String userId, Credential credential) {
+      this.userId = userId;
+      this.credentialId = credential.getRefreshToken() != null
+          ? sha256Hex(credential.getRefreshToken())
+          : String.valueOf(System.identityHashCode(credential));
+    }
+
+    private static String sha256Hex(String value) {
+      try {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256")
+            .digest(value.getBytes(StandardCharsets.UTF_8))) {
+          hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ClientKey)) {
+        return false;
+      }
+      ClientKey other = (ClientKey) o;
+      return userId.equals(other.userId) && credentialId.equals(other.credentialId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(userId, credentialId);
+    }
+  }
+}
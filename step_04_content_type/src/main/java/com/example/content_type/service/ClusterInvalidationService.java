@@ -0,0 +1,249 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.example.content_type.events.CredentialsRefreshedEvent;
+import com.example.content_type.models.CacheInvalidation;
+import com.example.content_type.repository.CacheInvalidationRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/** Keeps the near caches of several nodes consistent. Each node caches credentials, users and
+ * attachments in process; when a node changes or revokes one of them it drops its own entry and
+ * writes a row to the cache_invalidations table of the shared database. Every node polls the rows
+ * written since the last one it has seen and drops the named entries from its own caches.
+ * Identity ids are assigned when a row is inserted but the row is only visible once its
+ * transaction commits, so a row can appear behind one already seen. Each poll therefore also
+ * re-reads the rows written within addon.cluster.invalidation.late-commit-window and applies those
+ * it has not seen yet.
+ *
+ * <p>Each node is identified by addon.cluster.node-id, so several nodes can run in one JVM, for
+ * example as separate application contexts sharing an in-memory database. The time between a row
+ * being written and another node applying it is published as the addon.cluster.invalidation.lag
+ * timer; the hit rates of the near caches are published by the caches themselves. */
+@Service
+public class ClusterInvalidationService {
+  private static final Logger logger = LoggerFactory.getLogger(ClusterInvalidationService.class);
+
+  /** A user's credentials were revoked or cleared; peers publish a CredentialsInvalidatedEvent. */
+  public static final String CREDENTIALS = "credentials";
+  /** A user's record or stored tokens changed; peers reload the user and their Credential. */
+  public static final String USERS = "users";
+  /** An attachment was saved; peers reload it from the database. */
+  public static final String ATTACHMENTS = "attachments";
+
+  /** Declare the repository, caches and services to be used in the class constructor. */
+  private final CacheInvalidationRepository cacheInvalidationRepository;
+  private final CredentialCache credentialCache;
+  private final UserAccountCache userAccountCache;
+  private final AttachmentCache attachmentCache;
+  private final ApplicationEventPublisher eventPublisher;
+  private final MeterRegistry meterRegistry;
+
+  private final boolean enabled;
+  private final String nodeId;
+  private final int batchSize;
+  private final Duration retention;
+  private final Duration lateCommitWindow;
+  private final Timer lagTimer;
+
+  /** The id of the last invalidation applied by this node. Only used by the polling thread. */
+  private long lastSeenId = -1;
+  /** The creation time of each invalidation seen within the late-commit window, by id, so that
+   * re-read rows are applied once. Only used by the polling thread. */
+  private final Map<Long, Long> recentlySeen = new HashMap<>();
+
+  /** ClusterInvalidationService constructor. Uses constructor injection to instantiate the
+   * repository, caches and services.
+   * @param cacheInvalidationRepository the class that interacts with stored invalidations.
+   * @param credentialCache the near cache of live credentials.
+   * @param userAccountCache the near cache of users and their stored credentials.
+   * @param attachmentCache the near cache of attachments.
+   * @param eventPublisher the publisher used to apply credential invalidations from other nodes.
+   * @param meterRegistry the registry used to publish invalidation counts and lag.
+   * @param enabled whether invalidations are broadcast to and received from other nodes.
+   * @param nodeId the id of this node. If empty, a random id is generated.
+   * @param batchSize the maximum number of invalidations applied per poll.
+   * @param retention how long invalidations are kept before they are deleted.
+   * @param lateCommitWindow how far back each poll re-reads invalidations, to catch rows committed
+   * after rows with a higher id. Must exceed the longest commit delay plus the clock skew between
+   * nodes.
+   */
+  public ClusterInvalidationService(CacheInvalidationRepository cacheInvalidationRepository,
+      CredentialCache credentialCache, UserAccountCache userAccountCache,
+      AttachmentCache attachmentCache, ApplicationEventPublisher eventPublisher,
+      MeterRegistry meterRegistry,
+      @Value("${addon.cluster.invalidation.enabled:false}") boolean enabled,
+      @Value("${addon.cluster.node-id:}") String nodeId,
+      @Value("${addon.cluster.invalidation.batch-size:500}") int batchSize,
+      @Value("${addon.cluster.invalidation.retention:1h}") Duration retention,
+      @Value("${addon.cluster.invalidation.late-commit-window:30s}") Duration lateCommitWindow) {
+    this.cacheInvalidationRepository = cacheInvalidationRepository;
+    this.credentialCache = credentialCache;
+    this.userAccountCache = userAccountCache;
+    this.attachmentCache = attachmentCache;
+    this.eventPublisher = eventPublisher;
+    this.meterRegistry = meterRegistry;
+    this.enabled = enabled;
+    this.nodeId = nodeId.isEmpty() ? UUID.randomUUID().toString() : nodeId;
+    this.batchSize = batchSize;
+    this.retention = retention;
+    this.lateCommitWindow = lateCommitWindow;
+    this.lagTimer = Timer.builder("addon.cluster.invalidation.lag")
+        .description("Time between an invalidation being written and another node applying it")
+        .register(meterRegistry);
+  }
+
+  /** Returns the id of this node. */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /** Tells the other nodes to drop an entry this node has changed. Does nothing unless enabled.
+   * @param cacheName one of CREDENTIALS, USERS or ATTACHMENTS.
+   * @param key the user id or attachment id of the entry.
+   */
+  public void publish(String cacheName, String key) {
+    if (!enabled || key == null) {
+      return;
+    }
+    try {
+      cacheInvalidationRepository.save(new CacheInvalidation(cacheName, key, nodeId));
+      record("sent", cacheName);
+    } catch (RuntimeException e) {
+      /** The peers' entries expire on their own; the change itself has already been saved. */
+      logger.warn("Could not broadcast the invalidation of {} {}", cacheName, key, e);
+    }
+  }
+
+  /** Broadcasts credentials revoked or cleared on this node.
+   * @param event the event naming the user whose credentials are no longer valid.
+   */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    if (!event.isRemote()) {
+      publish(CREDENTIALS, event.getUserId());
+    }
+  }
+
+  /** Broadcasts access tokens refreshed on this node, so that other nodes stop using the old one.
+   * @param event the event naming the user whose access token was refreshed.
+   */
+  @EventListener
+  public void onCredentialsRefreshed(CredentialsRefreshedEvent event) {
+    publish(USERS, event.getUserId());
+  }
+
+  /** Applies the invalidations written by other nodes since the last poll, including those that
+   * committed late behind rows already seen. On the first poll, only the position is recorded:
+   * entries cached before this node started cannot be stale. */
+  @Scheduled(fixedDelayString = "${addon.cluster.invalidation.poll-interval-ms:1000}")
+  public void pollInvalidations() {
+    if (!enabled) {
+      return;
+    }
+    long windowStart = System.currentTimeMillis() - lateCommitWindow.toMillis();
+    recentlySeen.values().removeIf(createdAt -> createdAt < windowStart);
+    if (lastSeenId < 0) {
+      Long maxId = cacheInvalidationRepository.findMaxId();
+      lastSeenId = maxId != null ? maxId : 0;
+      for (CacheInvalidation invalidation :
+          cacheInvalidationRepository.findCreatedSince(windowStart, lastSeenId)) {
+        recentlySeen.put(invalidation.getId(), invalidation.getCreated_at());
+      }
+      return;
+    }
+    for (CacheInvalidation invalidation :
+        cacheInvalidationRepository.findCreatedSince(windowStart, lastSeenId)) {
+      if (!recentlySeen.containsKey(invalidation.getId())) {
+        receive(invalidation);
+        if (!nodeId.equals(invalidation.getNode_id())) {
+          record("late", invalidation.getCache_name());
+        }
+      }
+    }
+    List<CacheInvalidation> invalidations;
+    do {
+      invalidations = cacheInvalidationRepository.findAfter(lastSeenId,
+          PageRequest.of(0, batchSize));
+      for (CacheInvalidation invalidation : invalidations) {
+        lastSeenId = invalidation.getId();
+        receive(invalidation);
+      }
+    } while (invalidations.size() == batchSize);
+  }
+
+  /** Deletes invalidations that every running node has had time to apply. */
+  @Scheduled(fixedDelayString = "${addon.cluster.invalidation.cleanup-interval-ms:600000}")
+  public void deleteExpiredInvalidations() {
+    if (enabled) {
+      cacheInvalidationRepository.deleteOlderThan(
+          System.currentTimeMillis() - retention.toMillis());
+    }
+  }
+
+  /** Applies an invalidation written by another node and remembers it as seen. */
+  private void receive(CacheInvalidation invalidation) {
+    recentlySeen.put(invalidation.getId(), invalidation.getCreated_at());
+    if (!nodeId.equals(invalidation.getNode_id())) {
+      apply(invalidation.getCache_name(), invalidation.getCache_key());
+      lagTimer.record(Math.max(0, System.currentTimeMillis() - invalidation.getCreated_at()),
+          TimeUnit.MILLISECONDS);
+      record("received", invalidation.getCache_name());
+    }
+  }
+
+  /** Drops the named entry from this node's caches. */
+  private void apply(String cacheName, String key) {
+    switch (cacheName) {
+      case CREDENTIALS:
+        eventPublisher.publishEvent(new CredentialsInvalidatedEvent(key, true));
+        break;
+      case USERS:
+        credentialCache.invalidate(key);
+        userAccountCache.invalidate(key);
+        break;
+      case ATTACHMENTS:
+        attachmentCache.invalidate(key);
+        break;
+      default:
+        logger.warn("Ignoring invalidation of unknown cache {}", cacheName);
+    }
+  }
+
+  private void record(String direction, String cacheName) {
+    Counter.builder("addon.cluster.invalidations")
+        .description("Cache invalidations broadcast to or received from other nodes")
+        .tag("direction", direction)
+        .tag("cache", cacheName)
+        .register(meterRegistry)
+        .increment();
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.client.auth.oauth2.Credential;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/** The live Credential objects of signed-in users, shared by all of a user's sessions and
+ * requests. Sessions only hold the user's id; the Credential, with its transport, JSON factory and
+ * refresh listeners, is kept once per user here and refreshed in place. */
+@Component
+public class CredentialCache {
+
+  /** Entries are keyed by user id. A Credential being loaded is held as an incomplete future, so
+   * that concurrent callers wait for the same load. */
+  private final AsyncCache<String, Credential> cache;
+
+  /** CredentialCache constructor.
+   * @param meterRegistry the registry used to publish cache hit, miss and eviction metrics.
+   * @param maximumSize the maximum number of users whose Credential is kept in the cache.
+   * @param expireAfterAccess how long an unused Credential is kept before it is loaded again from
+   * the credential data store.
+   */
+  public CredentialCache(MeterRegistry meterRegistry,
+      @Value("${addon.credential-cache.maximum-size:10000}") long maximumSize,
+      @Value("${addon.credential-cache.expire-after-access:30m}") Duration expireAfterAccess) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(expireAfterAccess)
+        .recordStats()
+        .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "addon.credentials");
+  }
+
+  /** Returns the user's Credential, loading it on a miss. If two requests need the same user's
+   * Credential at once, the Credential is loaded once and both receive it.
+   * @param userId the id of the user.
+   * @param loader the call that loads the Credential from the credential data store.
+   * @return the user's Credential, or null if the user has no stored credentials.
+   * @throws Exception if loading the Credential is unsuccessful.
+   */
+  public Credential get(String userId, CredentialLoader loader) throws Exception {
+    /** The first caller loads the Credential itself, after the cache has mapped the user to its
+     * future, so the load does not run under a map lock. Invalidating the user while the load is
+     * in flight drops its result. A null Credential is not cached. */
+    CompletableFuture<Credential> load = new CompletableFuture<>();
+    CompletableFuture<Credential> credential = cache.get(userId, (k, executor) -> load);
+    if (credential == load) {
+      try {
+        load.complete(loader.load());
+      } catch (Exception e) {
+        load.completeExceptionally(e);
+      }
+    }
+    try {
+      return credential.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Stores the Credential obtained when the user signed in, replacing any previous one.
+   * @param userId the id of the user.
+   * @param credential the user's new Credential.
+   */
+  public void put(String userId, Credential credential) {
+    cache.put(userId, CompletableFuture.completedFuture(credential));
+  }
+
+  /** Drops the user's Credential so that it is loaded again from the credential data store, such
+   * as when another node saved new tokens for the user.
+   * @param userId the id of the user.
+   */
+  public void invalidate(String userId) {
+    cache.synchronous().invalidate(userId);
+  }
+
+  /** Drops the user's Credential when their credentials are revoked or cleared.
+   * @param event the event naming the user whose credentials are no longer valid.
+   */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    cache.synchronous().invalidate(event.getUserId());
+  }
+
+  /** Loads a Credential for a cache miss. */
+  @FunctionalInterface
+  public interface CredentialLoader {
+    Credential load() throws Exception;
+  }
+}
@@ -0,0 +1,329 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import com.example.content_type.models.DeprovisioningJob;
+import com.example.content_type.models.User;
+import com.example.content_type.models.UserCredential;
+import com.example.content_type.repository.DeprovisioningJobRepository;
+import com.example.content_type.repository.UserCredentialRepository;
+import com.example.content_type.repository.UserRepository;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/** Revokes and deletes the credentials of many users at once, for example when a domain uninstalls
+ * the add-on. A deprovisioning job walks the users table in id order, in batches. For each batch it
+ * revokes the users' tokens in parallel on the Google API executor, with a bounded number of calls
+ * in flight and a maximum call rate, then deletes the batch's credentials and users with one
+ * statement each and stores the last user id as the job's checkpoint. Revoke calls that fail are
+ * handed to the RevocationService queue, so the job does not wait for them. A job interrupted by a
+ * restart is claimed again once its lease expires and resumes after its checkpoint. */
+@Service
+public class DeprovisioningService {
+  private static final Logger logger = LoggerFactory.getLogger(DeprovisioningService.class);
+
+  /** Declare the repositories and services to be used in the class constructor. */
+  private final DeprovisioningJobRepository deprovisioningJobRepository;
+  private final UserRepository userRepository;
+  private final UserCredentialRepository userCredentialRepository;
+  private final AuthService authService;
+  private final RevocationService revocationService;
+  private final Executor deprovisioningExecutor;
+  private final Executor googleApiExecutor;
+  private final MeterRegistry meterRegistry;
+
+  private final int batchSize;
+  private final int parallelism;
+  private final int ratePerSecond;
+  private final long leaseMs;
+
+  private final Timer batchTimer;
+
+  /** Whether this node is running a job. Each node runs one job at a time. */
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  /** DeprovisioningService constructor. Uses constructor injection to instantiate the
+   * repositories, services and executors.
+   * @param deprovisioningJobRepository the class that interacts with stored jobs.
+   * @param userRepository the class that interacts with User objects stored in persistent storage.
+   * @param userCredentialRepository the class that interacts with credentials stored in H2.
+   * @param authService the service that owns the credential data store and caches.
+   * @param revocationService the service that revokes tokens and queues failed revocations.
+   * @param deprovisioningExecutor the single-thread pool that runs a job.
+   * @param googleApiExecutor the bounded executor the revoke calls run on.
+   * @param meterRegistry the registry used to publish progress metrics.
+   * @param batchSize the number of users read, revoked and deleted per batch.
+   * @param parallelism the maximum number of revoke calls in flight.
+   * @param ratePerSecond the maximum number of revoke calls started per second, or 0 for no limit.
+   * @param leaseMs how long a RUNNING job may go without an update before it is considered
+   * abandoned and claimed again.
+   */
+  public DeprovisioningService(DeprovisioningJobRepository deprovisioningJobRepository,
+      UserRepository userRepository, UserCredentialRepository userCredentialRepository,
+      AuthService authService, RevocationService revocationService,
+      @Qualifier(ExecutorConfig.DEPROVISIONING_EXECUTOR) Executor deprovisioningExecutor,
+      @Qualifier(ExecutorConfig.GOOGLE_API_EXECUTOR) Executor googleApiExecutor,
+      MeterRegistry meterRegistry,
+      @Value("${addon.deprovisioning.batch-size:500}") int batchSize,
+      @Value("${addon.deprovisioning.parallelism:8}") int parallelism,
+      @Value("${addon.deprovisioning.rate-per-second:50}") int ratePerSecond,
+      @Value("${addon.deprovisioning.lease-ms:300000}") long leaseMs) {
+    this.deprovisioningJobRepository = deprovisioningJobRepository;
+    this.userRepository = userRepository;
+    this.userCredentialRepository = userCredentialRepository;
+    this.authService = authService;
+    this.revocationService = revocationService;
+    this.deprovisioningExecutor = deprovisioningExecutor;
+    this.googleApiExecutor = googleApiExecutor;
+    this.meterRegistry = meterRegistry;
+    this.batchSize = batchSize;
+    this.parallelism = parallelism;
+    this.ratePerSecond = ratePerSecond;
+    this.leaseMs = leaseMs;
+    this.batchTimer = Timer.builder("addon.deprovisioning.batch")
+        .description("Time taken to revoke and delete one batch of users")
+        .register(meterRegistry);
+  }
+
+  /** Stores a new deprovisioning job.
+   * @param emailDomain the email domain whose users are deprovisioned, or null for all users.
+   * @return the id of the new job.
+   */
+  public String enqueue(String emailDomain) {
+    String jobId = UUID.randomUUID().toString();
+    deprovisioningJobRepository.save(new DeprovisioningJob(jobId,
+        emailDomain != null ? emailDomain.toLowerCase(Locale.ROOT) : null));
+    return jobId;
+  }
+
+  /** Retrieves a job from the DeprovisioningJobRepository.
+   * @param jobId the id of the job.
+   * @return the job, if it exists.
+   */
+  public Optional<DeprovisioningJob> getJob(String jobId) {
+    return deprovisioningJobRepository.findById(jobId);
+  }
+
+  /** Claims the oldest waiting job, if this node is not running one, and starts it. A job is
+   * claimed by moving it to RUNNING; if another node claims it first, the version check fails and
+   * the job is skipped. */
+  @Scheduled(fixedDelayString = "${addon.deprovisioning.poll-interval-ms:5000}")
+  public void pollJobs() {
+    if (!running.compareAndSet(false, true)) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (DeprovisioningJob job : deprovisioningJobRepository.findClaimable(now - leaseMs,
+        PageRequest.of(0, 1))) {
+      DeprovisioningJob claimedJob;
+      try {
+        job.setStatus(DeprovisioningJob.RUNNING);
+        if (job.getStarted_at() == null) {
+          job.setStarted_at(now);
+        }
+        job.setUpdated_at(now);
+        claimedJob = deprovisioningJobRepository.save(job);
+      } catch (ObjectOptimisticLockingFailureException e) {
+        continue;
+      }
+      try {
+        deprovisioningExecutor.execute(() -> {
+          try {
+            runJob(claimedJob);
+          } finally {
+            running.set(false);
+          }
+        });
+        return;
+      } catch (RuntimeException e) {
+        /** The job is picked up again once its lease expires. */
+        logger.warn("Could not start deprovisioning job {}", claimedJob.getId(), e);
+      }
+    }
+    running.set(false);
+  }
+
+  /** Processes the job's remaining users batch by batch, saving the checkpoint after each batch.
+   * @param job the claimed job.
+   */
+  private void runJob(DeprovisioningJob job) {
+    String emailPattern = job.getEmail_domain() != null ? "%@" + job.getEmail_domain() : null;
+    Semaphore permits = new Semaphore(parallelism);
+    long intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+    long nextCallNanos = System.nanoTime();
+    try {
+      List<User> users;
+      while (!(users = userRepository.findPageAfter(job.getCheckpoint(), emailPattern,
+          PageRequest.of(0, batchSize))).isEmpty()) {
+        long start = System.nanoTime();
+        List<String> userIds = new ArrayList<>();
+        for (User user : users) {
+          userIds.add(user.getId());
+        }
+        Map<String, String> tokens = loadTokens(userIds);
+
+        List<CompletableFuture<Boolean>> revocations = new ArrayList<>();
+        for (Map.Entry<String, String> entry : tokens.entrySet()) {
+          permits.acquire();
+          long waitNanos = nextCallNanos - System.nanoTime();
+          if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+          }
+          nextCallNanos = Math.max(nextCallNanos, System.nanoTime()) + intervalNanos;
+          revocations.add(revoke(entry.getKey(), entry.getValue())
+              .whenComplete((revoked, e) -> permits.release()));
+        }
+        long revoked = 0;
+        for (CompletableFuture<Boolean> revocation : revocations) {
+          if (revocation.join()) {
+            revoked++;
+          }
+        }
+
+        deleteCredentials(userIds);
+        userRepository.deleteAllByIds(userIds);
+        for (String userId : userIds) {
+          authService.invalidateCredentials(userId);
+        }
+
+        record("revoked", revoked);
+        record("queued", revocations.size() - revoked);
+        record("no_credentials", userIds.size() - revocations.size());
+        job.setRevoked(job.getRevoked() + revoked);
+        job.setQueued(job.getQueued() + revocations.size() - revoked);
+        job.setProcessed(job.getProcessed() + userIds.size());
+        job.setCheckpoint(userIds.get(userIds.size() - 1));
+        job.setUpdated_at(System.currentTimeMillis());
+        job = deprovisioningJobRepository.save(job);
+        batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+      job.setStatus(DeprovisioningJob.SUCCEEDED);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      /** The lease expired and another node took the job over from the last checkpoint. */
+      logger.warn("Deprovisioning job {} was claimed by another worker", job.getId());
+      return;
+    } catch (InterruptedException e) {
+      /** The application is shutting down; the job resumes once its lease expires. */
+      Thread.currentThread().interrupt();
+      return;
+    } catch (Exception e) {
+      logger.warn("Deprovisioning job {} failed", job.getId(), e);
+      job.setStatus(DeprovisioningJob.FAILED);
+      job.setError(e.getMessage());
+    }
+    job.setUpdated_at(System.currentTimeMillis());
+    try {
+      deprovisioningJobRepository.save(job);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      logger.warn("Deprovisioning job {} was claimed by another worker", job.getId());
+    }
+  }
+
+  /** Starts the revoke call for a user's token on the Google API executor. If the executor is
+   * saturated, the token is queued for the RevocationService workers instead.
+   * @return a future that completes with true if the token was revoked, false if it was queued.
+   */
+  private CompletableFuture<Boolean> revoke(String userId, String token) {
+    try {
+      return CompletableFuture.supplyAsync(
+          () -> revocationService.revokeOrEnqueue(userId, token), googleApiExecutor);
+    } catch (RejectedExecutionException e) {
+      revocationService.enqueue(userId, token);
+      return CompletableFuture.completedFuture(false);
+    }
+  }
+
+  /** Returns the token to revoke for each of the given users who have stored credentials. When
+   * credentials are stored in the database they are read with one query. Revoking the refresh token
+   * revokes the whole grant, even once the access token expired. */
+  private Map<String, String> loadTokens(List<String> userIds) throws IOException {
+    Map<String, String> tokens = new HashMap<>();
+    DataStoreFactory dataStoreFactory = authService.getCredentialDataStore();
+    if (dataStoreFactory instanceof JpaDataStoreFactory) {
+      for (UserCredential userCredential : userCredentialRepository.findAllById(userIds)) {
+        putToken(tokens, userCredential.getId(),
+            JpaDataStoreFactory.toStoredCredential(userCredential));
+      }
+    } else {
+      DataStore<StoredCredential> dataStore =
+          StoredCredential.getDefaultDataStore(dataStoreFactory);
+      for (String userId : userIds) {
+        putToken(tokens, userId, dataStore.get(userId));
+      }
+    }
+    return tokens;
+  }
+
+  private static void putToken(Map<String, String> tokens, String userId,
+      StoredCredential storedCredential) {
+    if (storedCredential == null) {
+      return;
+    }
+    String token = storedCredential.getRefreshToken() != null
+        ? storedCredential.getRefreshToken() : storedCredential.getAccessToken();
+    if (token != null) {
+      tokens.put(userId, token);
+    }
+  }
+
+  /** Deletes the stored credentials of the given users, with one statement when they are stored in
+   * the database. */
+  private void deleteCredentials(List<String> userIds) throws IOException {
+    DataStoreFactory dataStoreFactory = authService.getCredentialDataStore();
+    if (dataStoreFactory instanceof JpaDataStoreFactory) {
+      userCredentialRepository.deleteAllByIds(userIds);
+    } else {
+      DataStore<StoredCredential> dataStore =
+          StoredCredential.getDefaultDataStore(dataStoreFactory);
+      for (String userId : userIds) {
+        dataStore.delete(userId);
+      }
+    }
+  }
+
+  private void record(String outcome, long users) {
+    Counter.builder("addon.deprovisioning.users")
+        .description("Users processed by deprovisioning jobs, by outcome")
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .increment(users);
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.SslUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLContext;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+/** Provides the single HTTP transport shared by every Google API client in the application: the
+ * OAuth token exchange and refresh, the Oauth2 userinfo client, the Classroom client and the
+ * revocation endpoint. Connections are pooled and kept alive so that repeated calls to the same
+ * Google host reuse an established TLS connection instead of performing a new handshake. */
+@Service
+public class HttpTransportService {
+  private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final HttpClient httpClient;
+  private final ApacheHttpTransport httpTransport;
+  private final RestTemplate restTemplate;
+  private final int connectTimeoutMs;
+  private final int readTimeoutMs;
+
+  /** HttpTransportService constructor. Builds the pooled connection manager and the transport.
+   * @param meterRegistry the registry used to publish connection pool metrics.
+   * @param maxConnections the maximum number of pooled connections across all hosts.
+   * @param maxConnectionsPerHost the maximum number of pooled connections to a single host.
+   * @param connectTimeoutMs the timeout for establishing a connection.
+   * @param readTimeoutMs the timeout for reading from an established connection.
+   * @param connectionRequestTimeoutMs the timeout for leasing a connection from the pool.
+   * @param idleTimeoutMs how long an unused pooled connection is kept open.
+   * @throws GeneralSecurityException if loading the Google trust store is unsuccessful.
+   * @throws IOException if loading the Google trust store is unsuccessful.
+   */
+  public HttpTransportService(MeterRegistry meterRegistry,
+      @Value("${addon.http.max-connections:200}") int maxConnections,
+      @Value("${addon.http.max-connections-per-host:50}") int maxConnectionsPerHost,
+      @Value("${addon.http.connect-timeout-ms:5000}") int connectTimeoutMs,
+      @Value("${addon.http.read-timeout-ms:20000}") int readTimeoutMs,
+      @Value("${addon.http.connection-request-timeout-ms:5000}") int connectionRequestTimeoutMs,
+      @Value("${addon.http.idle-timeout-ms:60000}") long idleTimeoutMs)
+      throws GeneralSecurityException, IOException {
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+
+    /** Trust the same certificate store that GoogleNetHttpTransport.newTrustedTransport() uses. */
+    SSLContext sslContext = SslUtils.getTlsSslContext();
+    SslUtils.initSslContext(sslContext, GoogleUtils.getCertificateTrustStore(),
+        SslUtils.getPkixTrustManagerFactory());
+
+    connectionManager = new PoolingHttpClientConnectionManager(
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", new SSLConnectionSocketFactory(sslContext))
+            .build());
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    connectionManager.setValidateAfterInactivity(2000);
+
+    /** Redirects and retries are handled by the Google client libraries, not by HttpClient.
+     * Content compression is left enabled so responses are requested and decoded as gzip. */
+    httpClient = HttpClientBuilder.create()
+        .useSystemProperties()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMs)
+            .setSocketTimeout(readTimeoutMs)
+            .setConnectionRequestTimeout(connectionRequestTimeoutMs)
+            .build())
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS)
+        .disableRedirectHandling()
+        .disableAutomaticRetries()
+        .build();
+    httpTransport = new ApacheHttpTransport(httpClient);
+    restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+
+    new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "google-api")
+        .bindTo(meterRegistry);
+  }
+
+  /** Returns the shared transport to be passed to Google API client builders.
+   * @return the pooled HttpTransport.
+   */
+  public HttpTransport getTransport() {
+    return httpTransport;
+  }
+
+  /** Returns the shared JSON factory to be passed to Google API client builders.
+   * @return the JsonFactory.
+   */
+  public JsonFactory getJsonFactory() {
+    return JSON_FACTORY;
+  }
+
+  /** Returns a RestTemplate that sends its requests through the shared connection pool.
+   * @return the pooled RestTemplate.
+   */
+  public RestTemplate getRestTemplate() {
+    return restTemplate;
+  }
+
+  /** Returns a request initializer that applies the configured timeouts before delegating to the
+   * given initializer. The Google client libraries set their own timeouts on every request, so the
+   * pool defaults alone would otherwise be overridden.
+   * @param delegate the initializer to run after the timeouts are applied, such as a Credential. May
+   * be null.
+   * @return the wrapping HttpRequestInitializer.
+   */
+  public HttpRequestInitializer initializer(HttpRequestInitializer delegate) {
+    return request -> {
+      request.setConnectTimeout(connectTimeoutMs);
+      request.setReadTimeout(readTimeoutMs);
+      if (delegate != null) {
+        delegate.initialize(request);
+      }
+    };
+  }
+
+  /** Closes pooled connections when the application shuts down.
+   * @throws IOException if closing the connection pool is unsuccessful.
+   */
+  @PreDestroy
+  public void shutdown() throws IOException {
+    httpTransport.shutdown();
+  }
+}
@@ -0,0 +1,248 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.google.api.client.auth.openidconnect.IdTokenVerifier;
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.googleapis.auth.oauth2.GooglePublicKeysManager;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.PemReader;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/** Verifies the ID tokens returned by the token exchange. One verifier and one set of signing keys
+ * are shared by every sign-in. The keys are fetched when the application starts, cached for as long
+ * as the certificate response's Cache-Control header allows, and refreshed in the background before
+ * they expire, so a sign-in does not wait for a certificate fetch.
+ *
+ * <p>The keys come from a KeySource. By default this is Google's certificate endpoint; setting
+ * addon.id-token.local-keys-file reads them from a local file instead, so that verification can be
+ * tested and benchmarked offline with locally minted tokens. */
+@Service
+public class IdTokenVerifierService {
+  private static final Logger logger = LoggerFactory.getLogger(IdTokenVerifierService.class);
+  private static final List<String> ISSUERS =
+      Arrays.asList("accounts.google.com", "https://accounts.google.com");
+
+  private final JsonFactory jsonFactory;
+  private final KeySource keySource;
+  private final Duration refreshAhead;
+  private final Timer refreshTimer;
+
+  /** The claims verifier for the current client id, rebuilt if the client secrets change. */
+  private volatile IdTokenVerifier payloadVerifier;
+
+  /** IdTokenVerifierService constructor.
+   * @param httpTransportService the service that provides the shared HTTP transport.
+   * @param meterRegistry the registry used to publish key refresh timings.
+   * @param localKeysFile a file with the signing certificates, in the JSON format of Google's
+   * certificate endpoint. If empty, keys are fetched from Google.
+   * @param refreshAhead how long before the cached keys expire they are refreshed.
+   */
+  @Autowired
+  public IdTokenVerifierService(HttpTransportService httpTransportService,
+      MeterRegistry meterRegistry,
+      @Value("${addon.id-token.local-keys-file:}") String localKeysFile,
+      @Value("${addon.id-token.refresh-ahead:10m}") Duration refreshAhead) {
+    this(httpTransportService.getJsonFactory(), localKeysFile.isEmpty()
+        ? new GoogleKeySource(new GooglePublicKeysManager(httpTransportService.getTransport(),
+            httpTransportService.getJsonFactory()))
+        : new LocalKeySource(httpTransportService.getJsonFactory(), new File(localKeysFile)),
+        meterRegistry, refreshAhead);
+  }
+
+  /** IdTokenVerifierService constructor for a given key source.
+   * @param jsonFactory the JSON factory used to parse ID tokens.
+   * @param keySource the source of the signing keys.
+   * @param meterRegistry the registry used to publish key refresh timings.
+   * @param refreshAhead how long before the cached keys expire they are refreshed.
+   */
+  public IdTokenVerifierService(JsonFactory jsonFactory, KeySource keySource,
+      MeterRegistry meterRegistry, Duration refreshAhead) {
+    this.jsonFactory = jsonFactory;
+    this.keySource = keySource;
+    this.refreshAhead = refreshAhead;
+    this.refreshTimer = Timer.builder("addon.id-token.keys.refresh")
+        .description("Time taken to fetch the ID token signing keys")
+        .register(meterRegistry);
+  }
+
+  /** Parses and verifies an ID token: its issuer, audience, expiry and signature.
+   * @param idTokenString the encoded ID token.
+   * @param clientId the OAuth client id the token must be issued to.
+   * @return the verified ID token, or null if it is not valid.
+   * @throws GeneralSecurityException if checking the signature is unsuccessful.
+   * @throws IOException if the token cannot be parsed or the keys cannot be fetched.
+   */
+  public GoogleIdToken verify(String idTokenString, String clientId)
+      throws GeneralSecurityException, IOException {
+    GoogleIdToken idToken = GoogleIdToken.parse(jsonFactory, idTokenString);
+    if (!payloadVerifierFor(clientId).verify(idToken)) {
+      return null;
+    }
+    for (PublicKey publicKey : keySource.getPublicKeys()) {
+      if (idToken.verifySignature(publicKey)) {
+        return idToken;
+      }
+    }
+    return null;
+  }
+
+  /** Fetches the keys when the application starts, so that the first sign-in does not. Keys
+   * already fetched by the warm-up are not fetched again. */
+  @EventListener(ApplicationReadyEvent.class)
+  public void prefetchKeys() {
+    refreshKeysIfExpiring();
+  }
+
+  /** Refreshes the keys in the background once they are about to expire. */
+  @Scheduled(fixedDelayString = "${addon.id-token.keys-check-interval-ms:60000}")
+  public void refreshKeysIfExpiring() {
+    if (keySource.getExpirationTimeMilliseconds()
+        <= System.currentTimeMillis() + refreshAhead.toMillis()) {
+      refreshKeys();
+    }
+  }
+
+  private void refreshKeys() {
+    long start = System.nanoTime();
+    try {
+      keySource.refresh();
+      refreshTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    } catch (GeneralSecurityException | IOException e) {
+      /** The cached keys, if any, are kept; a sign-in fetches them if they have expired. */
+      logger.warn("Could not fetch the ID token signing keys.", e);
+    }
+  }
+
+  private IdTokenVerifier payloadVerifierFor(String clientId) {
+    IdTokenVerifier verifier = payloadVerifier;
+    if (verifier == null || !verifier.getAudience().contains(clientId)) {
+      verifier = new IdTokenVerifier.Builder()
+          .setIssuers(ISSUERS)
+          .setAudience(Collections.singletonList(clientId))
+          .build();
+      payloadVerifier = verifier;
+    }
+    return verifier;
+  }
+
+  /** A source of the public keys ID tokens are signed with. */
+  public interface KeySource {
+
+    /** Returns the current keys, fetching them if they are not cached or have expired. */
+    List<PublicKey> getPublicKeys() throws GeneralSecurityException, IOException;
+
+    /** Returns when the cached keys expire, in milliseconds since the epoch. */
+    long getExpirationTimeMilliseconds();
+
+    /** Fetches the keys again. */
+    void refresh() throws GeneralSecurityException, IOException;
+  }
+
+  /** Reads the keys from Google's certificate endpoint. The keys are cached for as long as the
+   * response's Cache-Control max-age allows. */
+  public static class GoogleKeySource implements KeySource {
+    private final GooglePublicKeysManager publicKeysManager;
+
+    public GoogleKeySource(GooglePublicKeysManager publicKeysManager) {
+      this.publicKeysManager = publicKeysManager;
+    }
+
+    @Override
+    public List<PublicKey> getPublicKeys() throws GeneralSecurityException, IOException {
+      return publicKeysManager.getPublicKeys();
+    }
+
+    @Override
+    public long getExpirationTimeMilliseconds() {
+      return publicKeysManager.getExpirationTimeMilliseconds();
+    }
+
+    @Override
+    public void refresh() throws GeneralSecurityException, IOException {
+      publicKeysManager.refresh();
+    }
+  }
+
+  /** Reads the keys from a local file in the format of Google's certificate endpoint: a JSON
+   * object mapping each key id to a PEM encoded X.509 certificate. The keys do not expire; refresh
+   * re-reads the file. */
+  public static class LocalKeySource implements KeySource {
+    private final JsonFactory jsonFactory;
+    private final File file;
+    private volatile List<PublicKey> publicKeys;
+
+    public LocalKeySource(JsonFactory jsonFactory, File file) {
+      this.jsonFactory = jsonFactory;
+      this.file = file;
+    }
+
+    @Override
+    public List<PublicKey> getPublicKeys() throws GeneralSecurityException, IOException {
+      if (publicKeys == null) {
+        refresh();
+      }
+      return publicKeys;
+    }
+
+    @Override
+    public long getExpirationTimeMilliseconds() {
+      return publicKeys != null ? Long.MAX_VALUE : 0L;
+    }
+
+    @Override
+    public void refresh() throws GeneralSecurityException, IOException {
+      GenericJson certificates;
+      try (InputStream in = Files.newInputStream(file.toPath())) {
+        certificates = jsonFactory.fromInputStream(in, GenericJson.class);
+      }
+      CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+      List<PublicKey> keys = new ArrayList<>();
+      for (Object pem : certificates.values()) {
+        byte[] der = PemReader.readFirstSectionAndClose(new StringReader(pem.toString()),
+            "CERTIFICATE").getBase64DecodedBytes();
+        X509Certificate certificate = (X509Certificate) certificateFactory.generateCertificate(
+            new ByteArrayInputStream(der));
+        keys.add(certificate.getPublicKey());
+      }
+      publicKeys = Collections.unmodifiableList(keys);
+    }
+  }
+}
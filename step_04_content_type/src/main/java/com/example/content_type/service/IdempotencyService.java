@@ -0,0 +1,188 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.models.IdempotencyRecord;
+import com.example.content_type.repository.IdempotencyRecordRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.classroom.model.AddOnAttachment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/** De-duplicates create-attachment requests. The first request with a given idempotency key runs
+ * and its result is kept in memory and in the H2 database for the configured window. A repeated
+ * request within the window receives the original result, and a duplicate that arrives while the
+ * first request is still running waits for its result instead of creating attachments of its own.
+ * A request that fails can be retried; if it created some attachments before failing, they are
+ * recorded under the key and the retry only creates the others. */
+@Service
+public class IdempotencyService {
+
+  /** Declare IdempotencyRecordRepository to be used in the class constructor. */
+  private final IdempotencyRecordRepository idempotencyRecordRepository;
+  private final JsonFactory jsonFactory;
+
+  /** Results of requests that are running or completed recently on this node. */
+  private final Cache<String, CompletableFuture<AttachmentCreationResult>> results;
+  private final Duration window;
+  private final Duration waitTimeout;
+  private final Counter duplicates;
+
+  /** IdempotencyService constructor.
+   * @param idempotencyRecordRepository the class that interacts with stored results.
+   * @param httpTransportService the service that provides the shared JSON factory.
+   * @param meterRegistry the registry used to publish the number of de-duplicated requests.
+   * @param window how long a result is returned for repeated requests.
+   * @param maximumSize the maximum number of results kept in memory.
+   * @param waitTimeout how long a duplicate request waits for the first request to complete.
+   */
+  public IdempotencyService(IdempotencyRecordRepository idempotencyRecordRepository,
+      HttpTransportService httpTransportService, MeterRegistry meterRegistry,
+      @Value("${addon.idempotency.window:10m}") Duration window,
+      @Value("${addon.idempotency.maximum-size:10000}") long maximumSize,
+      @Value("${addon.idempotency.wait-timeout:60s}") Duration waitTimeout) {
+    this.idempotencyRecordRepository = idempotencyRecordRepository;
+    this.jsonFactory = httpTransportService.getJsonFactory();
+    this.window = window;
+    this.waitTimeout = waitTimeout;
+    this.results = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(window)
+        .build();
+    this.duplicates = Counter.builder("addon.idempotency.duplicates")
+        .description("Requests answered with the result of an earlier request")
+        .register(meterRegistry);
+  }
+
+  /** Builds an idempotency key by hashing its parts, for example the session id, the item and the
+   * selection.
+   * @param parts the values that identify the request.
+   * @return the hex encoded SHA-256 hash of the parts.
+   */
+  public static String key(String... parts) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String part : parts) {
+        digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+      StringBuilder key = new StringBuilder();
+      for (byte b : digest.digest()) {
+        key.append(String.format("%02x", b));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Runs the action once per idempotency key within the window.
+   * @param key the idempotency key of the request.
+   * @param action the action that creates the attachments.
+   * @return the result of the action, or the result of an earlier request with the same key.
+   * @throws Exception if the action, or the earlier request being waited on, is unsuccessful.
+   */
+  public AttachmentCreationResult execute(String key, CreationAction action) throws Exception {
+    CompletableFuture<AttachmentCreationResult> future = new CompletableFuture<>();
+    CompletableFuture<AttachmentCreationResult> existing =
+        results.asMap().putIfAbsent(key, future);
+    if (existing != null) {
+      duplicates.increment();
+      return await(existing);
+    }
+
+    Map<Integer, AddOnAttachment> created = new TreeMap<>();
+    try {
+      /** The request may have completed on another node or before a restart. */
+      Optional<IdempotencyRecord> record = idempotencyRecordRepository.findById(key);
+      if (record.isPresent()
+          && record.get().getCreated_at() > System.currentTimeMillis() - window.toMillis()) {
+        AttachmentCreationResult stored = jsonFactory.fromString(record.get().getResponse(),
+            AttachmentCreationResult.class);
+        if (!stored.isPartial()) {
+          duplicates.increment();
+          future.complete(stored);
+          return stored;
+        }
+        created.putAll(stored.getCreated());
+      }
+
+      AttachmentCreationResult result = action.create(created);
+      idempotencyRecordRepository.save(new IdempotencyRecord(key, jsonFactory.toString(result),
+          System.currentTimeMillis()));
+      future.complete(result);
+      return result;
+    } catch (Exception e) {
+      if (!created.isEmpty()) {
+        try {
+          idempotencyRecordRepository.save(new IdempotencyRecord(key,
+              jsonFactory.toString(AttachmentCreationResult.partial(created)),
+              System.currentTimeMillis()));
+        } catch (Exception saveFailure) {
+          e.addSuppressed(saveFailure);
+        }
+      }
+      results.asMap().remove(key, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /** Deletes stored results that are older than the window. */
+  @Scheduled(fixedDelayString = "${addon.idempotency.cleanup-interval-ms:60000}")
+  public void deleteExpiredRecords() {
+    idempotencyRecordRepository.deleteCreatedBefore(
+        System.currentTimeMillis() - window.toMillis());
+  }
+
+  /** Creates the attachments of a request. */
+  @FunctionalInterface
+  public interface CreationAction {
+    /** Creates the attachments that are not in created yet.
+     * @param created the attachments created by earlier attempts, by their position in the
+     * request. The action adds the attachments it creates, also when it fails.
+     * @return the result of the request.
+     * @throws Exception if creating the attachments is unsuccessful.
+     */
+    AttachmentCreationResult create(Map<Integer, AddOnAttachment> created) throws Exception;
+  }
+
+  /** Waits for the result of the request that is already running or has completed. */
+  private AttachmentCreationResult await(CompletableFuture<AttachmentCreationResult> existing)
+      throws Exception {
+    try {
+      return existing.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
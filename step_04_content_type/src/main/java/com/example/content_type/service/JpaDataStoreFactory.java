@@ -0,0 +1,171 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.models.UserCredential;
+import com.example.content_type.repository.UserCredentialRepository;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+
+/** A DataStoreFactory that keeps credentials in the user_credentials table of the H2 database,
+ * next to the users table, so that a user and their credentials can be read with a single query.
+ * Only the StoredCredential data store used by the authorization code flow is supported. */
+public class JpaDataStoreFactory extends AbstractDataStoreFactory {
+  private static final Logger logger = LoggerFactory.getLogger(JpaDataStoreFactory.class);
+
+  /** Declare UserCredentialRepository to be used in the class constructor. */
+  private final UserCredentialRepository userCredentialRepository;
+
+  /** JpaDataStoreFactory constructor.
+   * @param userCredentialRepository the class that interacts with stored credentials.
+   */
+  public JpaDataStoreFactory(UserCredentialRepository userCredentialRepository) {
+    this.userCredentialRepository = userCredentialRepository;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected <V extends Serializable> DataStore<V> createDataStore(String id) {
+    if (!StoredCredential.DEFAULT_DATA_STORE_ID.equals(id)) {
+      throw new IllegalArgumentException("Unsupported data store: " + id);
+    }
+    return (DataStore<V>) new CredentialDataStore(this, id);
+  }
+
+  /** Copies the credentials held by another data store factory, for example the file store used
+   * before, into the database. Users who already have credentials in the database are skipped.
+   * @param source the data store factory to copy from.
+   * @return the number of credentials copied.
+   * @throws IOException if reading from the source is unsuccessful.
+   */
+  public int importFrom(DataStoreFactory source) throws IOException {
+    DataStore<StoredCredential> sourceStore = StoredCredential.getDefaultDataStore(source);
+    DataStore<StoredCredential> targetStore = StoredCredential.getDefaultDataStore(this);
+    int imported = 0;
+    for (String userId : sourceStore.keySet()) {
+      if (!targetStore.containsKey(userId)) {
+        targetStore.set(userId, sourceStore.get(userId));
+        imported++;
+      }
+    }
+    logger.info("Imported {} stored credentials into the database", imported);
+    return imported;
+  }
+
+  /** Converts a stored row to the StoredCredential used by the authorization code flow.
+   * @param userCredential the stored row.
+   * @return the StoredCredential.
+   */
+  public static StoredCredential toStoredCredential(UserCredential userCredential) {
+    return new StoredCredential()
+        .setAccessToken(userCredential.getAccess_token())
+        .setRefreshToken(userCredential.getRefresh_token())
+        .setExpirationTimeMilliseconds(userCredential.getExpiration_time_ms());
+  }
+
+  /** The StoredCredential data store backed by the user_credentials table. */
+  private final class CredentialDataStore extends AbstractDataStore<StoredCredential> {
+
+    CredentialDataStore(DataStoreFactory dataStoreFactory, String id) {
+      super(dataStoreFactory, id);
+    }
+
+    @Override
+    public Set<String> keySet() {
+      return Collections.unmodifiableSet(new HashSet<>(userCredentialRepository.findAllIds()));
+    }
+
+    @Override
+    public Collection<StoredCredential> values() {
+      List<StoredCredential> values = new ArrayList<>();
+      for (UserCredential userCredential : userCredentialRepository.findAll()) {
+        values.add(toStoredCredential(userCredential));
+      }
+      return Collections.unmodifiableList(values);
+    }
+
+    @Override
+    public StoredCredential get(String key) {
+      if (key == null) {
+        return null;
+      }
+      Optional<UserCredential> userCredential = userCredentialRepository.findById(key);
+      return userCredential.map(JpaDataStoreFactory::toStoredCredential).orElse(null);
+    }
+
+    /** Saves the credentials with a single conditional update, inserting them if the user has none
+     * yet. Concurrent saves of the same user's credentials never lose the newest access token or a
+     * new refresh token. */
+    @Override
+    public DataStore<StoredCredential> set(String key, StoredCredential value) {
+      if (key == null || value == null) {
+        throw new NullPointerException();
+      }
+      long now = System.currentTimeMillis();
+      if (userCredentialRepository.updateUnlessNewer(key, value.getAccessToken(),
+          value.getRefreshToken(), value.getExpirationTimeMilliseconds(), now) > 0
+          || userCredentialRepository.existsById(key)) {
+        return this;
+      }
+      try {
+        userCredentialRepository.save(new UserCredential(key, value.getAccessToken(),
+            value.getRefreshToken(), value.getExpirationTimeMilliseconds()));
+      } catch (DataIntegrityViolationException e) {
+        /** Another request inserted the row first; apply this save as an update instead. */
+        userCredentialRepository.updateUnlessNewer(key, value.getAccessToken(),
+            value.getRefreshToken(), value.getExpirationTimeMilliseconds(), now);
+      }
+      return this;
+    }
+
+    @Override
+    public DataStore<StoredCredential> clear() {
+      userCredentialRepository.deleteAll();
+      return this;
+    }
+
+    @Override
+    public DataStore<StoredCredential> delete(String key) {
+      if (key != null) {
+        userCredentialRepository.deleteIfExists(key);
+      }
+      return this;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+      return key != null && userCredentialRepository.existsById(key);
+    }
+
+    @Override
+    public int size() {
+      return (int) userCredentialRepository.count();
+    }
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.stereotype.Service;
+
+/** Keeps the launch context of the add-on: the query parameters Classroom passes when it opens the
+ * iframe (itemId, itemType, courseId, addOnToken, attachmentId and login_hint), the page that
+ * started the sign-in, and the OAuth state parameter.
+ *
+ * <p>In "session" mode, the default, the values are HttpSession attributes. In "signed-cookie"
+ * mode they are carried by the browser in a cookie holding an HMAC-SHA256 signed, expiring token,
+ * so that any node can serve any request without sticky or shared sessions. The OAuth state is then
+ * signed as part of the token and cannot be forged or replayed past its expiry. Signing and
+ * verification times are published as the addon.launch-context.sign and
+ * addon.launch-context.verify timers. */
+@Service
+public class LaunchContextStore {
+  private static final Logger logger = LoggerFactory.getLogger(LaunchContextStore.class);
+  private static final String MODE_SIGNED_COOKIE = "signed-cookie";
+  private static final String COOKIE_NAME = "launch_context";
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private static final String EXPIRY = "exp";
+
+  /** The names of the values that make up the launch context. */
+  public static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList(
+      "itemId", "itemType", "courseId", "addOnToken", "attachmentId", "login_hint", "targetPage",
+      "state"));
+
+  private final boolean signedCookie;
+  private final Duration timeToLive;
+  private final SecretKeySpec key;
+  private final Timer signTimer;
+  private final Timer verifyTimer;
+
+  /** Mac instances are not thread-safe, so each thread keeps its own, initialized with the key. */
+  private final ThreadLocal<Mac> macs;
+
+  /** LaunchContextStore constructor.
+   * @param meterRegistry the registry used to publish signing and verification timings.
+   * @param mode "session" or "signed-cookie".
+   * @param secret the Base64 encoded HMAC key shared by all nodes. If empty, a random key is
+   * generated, which only works for a single node and does not survive restarts.
+   * @param timeToLive how long a signed launch context is valid after it was last saved.
+   */
+  public LaunchContextStore(MeterRegistry meterRegistry,
+      @Value("${addon.launch-context.mode:session}") String mode,
+      @Value("${addon.launch-context.secret:}") String secret,
+      @Value("${addon.launch-context.time-to-live:2h}") Duration timeToLive) {
+    this.signedCookie = MODE_SIGNED_COOKIE.equals(mode);
+    this.timeToLive = timeToLive;
+    byte[] keyBytes;
+    if (!secret.isEmpty()) {
+      keyBytes = Base64.getDecoder().decode(secret);
+    } else {
+      keyBytes = new byte[32];
+      new SecureRandom().nextBytes(keyBytes);
+      if (signedCookie) {
+        logger.warn("addon.launch-context.secret is not set; signed launch contexts will only be"
+            + " accepted by this node until it restarts.");
+      }
+    }
+    this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(key);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    this.signTimer = Timer.builder("addon.launch-context.sign")
+        .description("Time taken to sign a launch context")
+        .register(meterRegistry);
+    this.verifyTimer = Timer.builder("addon.launch-context.verify")
+        .description("Time taken to verify a signed launch context")
+        .register(meterRegistry);
+  }
+
+  /** Reads the launch context of the current request.
+   * @param request the current request.
+   * @return the launch context, empty if there is none or its signature or expiry is not valid.
+   */
+  public LaunchContext load(HttpServletRequest request) {
+    LaunchContext launchContext = new LaunchContext();
+    if (!signedCookie) {
+      HttpSession session = request.getSession(false);
+      if (session != null) {
+        for (String name : NAMES) {
+          Object value = session.getAttribute(name);
+          if (value != null) {
+            launchContext.values.put(name, value.toString());
+          }
+        }
+      }
+      return launchContext;
+    }
+
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (COOKIE_NAME.equals(cookie.getName())) {
+          Map<String, String> values = verifyTimer.record(() -> verify(cookie.getValue()));
+          if (values != null) {
+            launchContext.values.putAll(values);
+          }
+        }
+      }
+    }
+    return launchContext;
+  }
+
+  /** Stores the launch context if it was changed: in the session, or in the signed cookie sent
+   * with the response. Must be called before the response is committed.
+   * @param request the current request.
+   * @param response the current response.
+   * @param launchContext the launch context read with load.
+   */
+  public void save(HttpServletRequest request, HttpServletResponse response,
+      LaunchContext launchContext) {
+    if (!launchContext.modified) {
+      return;
+    }
+    if (!signedCookie) {
+      HttpSession session = request.getSession();
+      for (String name : NAMES) {
+        String value = launchContext.values.get(name);
+        if (value != null) {
+          session.setAttribute(name, value);
+        } else {
+          session.removeAttribute(name);
+        }
+      }
+    } else {
+      String token = signTimer.record(() -> sign(launchContext.values));
+      ResponseCookie cookie = ResponseCookie.from(COOKIE_NAME, token)
+          .httpOnly(true)
+          .secure(true)
+          .sameSite("None")
+          .path("/")
+          .maxAge(timeToLive)
+          .build();
+      response.addHeader(HttpHeaders.SET_COOKIE, cookie.toString());
+    }
+    launchContext.modified = false;
+  }
+
+  /** Encodes the values and their expiry as base64url(form-encoded values) "." base64url(HMAC). */
+  String sign(Map<String, String> values) {
+    StringBuilder payload = new StringBuilder(EXPIRY).append('=')
+        .append(System.currentTimeMillis() / 1000 + timeToLive.getSeconds());
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      payload.append('&').append(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8))
+          .append('=').append(URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8));
+    }
+    String encodedPayload = Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+    return encodedPayload + "." + Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(mac(encodedPayload));
+  }
+
+  /** Returns the values of a signed token, or null if its signature does not match or it has
+   * expired. */
+  Map<String, String> verify(String token) {
+    int separator = token.lastIndexOf('.');
+    if (separator < 0) {
+      return null;
+    }
+    String encodedPayload = token.substring(0, separator);
+    byte[] signature;
+    String payload;
+    try {
+      signature = Base64.getUrlDecoder().decode(token.substring(separator + 1));
+      if (!MessageDigest.isEqual(signature, mac(encodedPayload))) {
+        return null;
+      }
+      payload = new String(Base64.getUrlDecoder().decode(encodedPayload),
+          StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+
+    Map<String, String> values = new LinkedHashMap<>();
+    long expiry = 0;
+    for (String pair : payload.split("&")) {
+      int equals = pair.indexOf('=');
+      if (equals < 0) {
+        continue;
+      }
+      String name = URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8);
+      String value = URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+      if (EXPIRY.equals(name)) {
+        expiry = Long.parseLong(value);
+      } else if (NAMES.contains(name)) {
+        values.put(name, value);
+      }
+    }
+    return expiry > System.currentTimeMillis() / 1000 ? values : null;
+  }
+
+  private byte[] mac(String encodedPayload) {
+    return macs.get().doFinal(encodedPayload.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /** The launch context of a request. */
+  public static final class LaunchContext {
+    private final Map<String, String> values = new LinkedHashMap<>();
+    private boolean modified;
+
+    /** Returns a value of the launch context.
+     * @param name one of LaunchContextStore.NAMES.
+     * @return the value, or null if it is not set.
+     */
+    public String get(String name) {
+      return values.get(name);
+    }
+
+    /** Sets or, if the value is null, removes a value of the launch context.
+     * @param name one of LaunchContextStore.NAMES.
+     * @param value the new value.
+     */
+    public void set(String name, String value) {
+      if (!NAMES.contains(name)) {
+        throw new IllegalArgumentException("Unknown launch context value: " + name);
+      }
+      String previous = value != null ? values.put(name, value) : values.remove(name);
+      if (value == null ? previous != null : !value.equals(previous)) {
+        modified = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.classroom.Classroom;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/** Prepares the teacher's next step while the add-on discovery page is shown. When a signed-in
+ * user opens the discovery iframe, the user's Credential, their Classroom client and the role the
+ * user has for the item are loaded in the background, and the Classroom client is parked in a
+ * short-lived slot for the session. The create and view handlers take the slot instead of
+ * starting cold; the role is served from the AddOnContextCache.
+ *
+ * <p>Each slot is counted once in the addon.prefetch counter: "used" if a handler took it,
+ * "wasted" if it expired or was replaced untaken, "pending" if a handler took it before it
+ * finished, "failed" if the prefetch threw, and "rejected" if no worker was free to start it. */
+@Service
+public class PrefetchService {
+  private static final Logger logger = LoggerFactory.getLogger(PrefetchService.class);
+
+  /** Declare the services and executor to be used in the class constructor. */
+  private final AuthService authService;
+  private final AttachmentService attachmentService;
+  private final Executor googleApiExecutor;
+  private final MeterRegistry meterRegistry;
+
+  private final boolean enabled;
+
+  /** Slots are keyed by session id. */
+  private final Cache<String, Prefetch> slots;
+
+  /** PrefetchService constructor. Uses constructor injection to instantiate the services and the
+   * executor that runs the prefetches.
+   * @param authService the service that resolves the user's Credential.
+   * @param attachmentService the service that builds Classroom clients and resolves roles.
+   * @param googleApiExecutor the bounded executor that runs Google API calls concurrently.
+   * @param meterRegistry the registry used to publish how prefetches were used.
+   * @param enabled whether the discovery page starts prefetches.
+   * @param timeToLive how long a prefetch is kept for the session before it is counted as wasted.
+   * @param maximumSize the maximum number of sessions with a prefetch kept at once.
+   */
+  public PrefetchService(AuthService authService, AttachmentService attachmentService,
+      @Qualifier(ExecutorConfig.GOOGLE_API_EXECUTOR) Executor googleApiExecutor,
+      MeterRegistry meterRegistry,
+      @Value("${addon.prefetch.enabled:true}") boolean enabled,
+      @Value("${addon.prefetch.time-to-live:2m}") Duration timeToLive,
+      @Value("${addon.prefetch.maximum-size:10000}") long maximumSize) {
+    this.authService = authService;
+    this.attachmentService = attachmentService;
+    this.googleApiExecutor = googleApiExecutor;
+    this.meterRegistry = meterRegistry;
+    this.enabled = enabled;
+    this.slots = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(timeToLive)
+        .removalListener((String sessionId, Prefetch prefetch, RemovalCause cause) -> {
+          if (cause != RemovalCause.EXPLICIT) {
+            record("wasted");
+          }
+        })
+        .build();
+  }
+
+  /** Starts loading the user's Credential, Classroom client and role for the item, replacing any
+   * prefetch already parked for the session. Returns right away.
+   * @param sessionId the id of the current session.
+   * @param userId the id of the signed-in user. If null, nothing is prefetched.
+   * @param courseId the id of the course the item belongs to. May be null.
+   * @param itemId the id of the item the add-on is opened for. May be null.
+   */
+  public void prefetch(String sessionId, String userId, String courseId, String itemId) {
+    if (!enabled || userId == null) {
+      return;
+    }
+    CompletableFuture<Classroom> classroom;
+    try {
+      classroom = CompletableFuture.supplyAsync(() -> load(userId, courseId, itemId),
+          googleApiExecutor);
+    } catch (RejectedExecutionException e) {
+      record("rejected");
+      return;
+    }
+    slots.put(sessionId, new Prefetch(userId, classroom));
+  }
+
+  /** Takes the Classroom client prefetched for the session, if it has finished loading. The slot
+   * is removed, so a prefetch is used at most once.
+   * @param sessionId the id of the current session.
+   * @param userId the id of the user the caller acts for.
+   * @return the prefetched Classroom client, or null if there is none for this user, it is still
+   * being loaded or the prefetch failed, in which case the caller builds the client itself.
+   */
+  public Classroom take(String sessionId, String userId) {
+    Prefetch prefetch = slots.asMap().remove(sessionId);
+    if (prefetch == null) {
+      return null;
+    }
+    if (userId == null || !userId.equals(prefetch.userId)) {
+      record("wasted");
+      return null;
+    }
+    /** Do not wait for a prefetch still in flight: it may be queued behind other Google API calls
+     * or stuck on a slow token refresh. The caller's cold build shares the Credential and role
+     * loads already in flight through their caches. */
+    if (!prefetch.classroom.isDone()) {
+      record("pending");
+      return null;
+    }
+    try {
+      Classroom classroom = prefetch.classroom.join();
+      record(classroom != null ? "used" : "failed");
+      return classroom;
+    } catch (CompletionException e) {
+      record("failed");
+      logger.debug("Prefetch for user {} failed", userId, e.getCause());
+      return null;
+    }
+  }
+
+  /** Loads the user's Credential and Classroom client and, if the item is known, the user's role
+   * for it. A failure to resolve the role does not fail the prefetch. */
+  private Classroom load(String userId, String courseId, String itemId) {
+    Credential credential;
+    try {
+      credential = authService.getCredential(userId);
+    } catch (Exception e) {
+      throw new CompletionException(e);
+    }
+    if (credential == null) {
+      return null;
+    }
+    Classroom classroom = attachmentService.getClassroomService(userId, credential);
+    if (courseId != null && itemId != null) {
+      try {
+        attachmentService.getUserContext(userId, classroom, courseId, itemId);
+      } catch (Exception e) {
+        logger.debug("Could not prefetch the AddOnContext of item {}", itemId, e);
+      }
+    }
+    return classroom;
+  }
+
+  private void record(String outcome) {
+    Counter.builder("addon.prefetch")
+        .description("Prefetches started by the discovery page, by how they ended")
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  /** A prefetch parked for a session. */
+  private static final class Prefetch {
+    private final String userId;
+    private final CompletableFuture<Classroom> classroom;
+
+    private Prefetch(String userId, CompletableFuture<Classroom> classroom) {
+      this.userId = userId;
+      this.classroom = classroom;
+    }
+  }
+}
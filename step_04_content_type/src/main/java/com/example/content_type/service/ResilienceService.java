@@ -0,0 +1,284 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.google.api.client.http.HttpResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/** Wraps calls to Google APIs with retries and per-endpoint circuit breakers. Calls that fail with
+ * 429 or a 5xx status, or with a network error, are retried with jittered exponential backoff,
+ * waiting at least as long as the response's Retry-After header asks. When an endpoint keeps
+ * failing, its circuit breaker opens and further calls fail immediately instead of occupying a
+ * request thread, until a trial call succeeds again. */
+@Service
+public class ResilienceService {
+  private final MeterRegistry meterRegistry;
+  private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+  private final int maxAttempts;
+  private final Duration initialBackoff;
+  private final Duration maxBackoff;
+  private final int failureThreshold;
+  private final Duration openDuration;
+
+  /** ResilienceService constructor.
+   * @param meterRegistry the registry used to publish retry counts and breaker states.
+   * @param maxAttempts the maximum number of attempts per call, including the first.
+   * @param initialBackoff the backoff ceiling before the first retry, doubled for each retry.
+   * @param maxBackoff the longest time to wait before a retry. A Retry-After longer than this is
+   * not waited for and the call fails instead.
+   * @param failureThreshold the number of consecutive failures that opens a breaker.
+   * @param openDuration how long an open breaker rejects calls before allowing a trial call.
+   */
+  public ResilienceService(MeterRegistry meterRegistry,
+      @Value("${addon.resilience.max-attempts:3}") int maxAttempts,
+      @Value("${addon.resilience.initial-backoff:200ms}") Duration initialBackoff,
+      @Value("${addon.resilience.max-backoff:5s}") Duration maxBackoff,
+      @Value("${addon.resilience.failure-threshold:5}") int failureThreshold,
+      @Value("${addon.resilience.open-duration:30s}") Duration openDuration) {
+    this.meterRegistry = meterRegistry;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoff = initialBackoff;
+    this.maxBackoff = maxBackoff;
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+  }
+
+  /** Executes a call to a Google API endpoint, retrying transient failures.
+   * @param endpoint the name of the endpoint, used to select its circuit breaker and tag metrics.
+   * @param call the call to execute.
+   * @param <T> the type of the call's result.
+   * @return the result of the call.
+   * @throws IOException the last failure if the call did not succeed, or CircuitOpenException if
+   * the endpoint's breaker is open.
+   */
+  public <T> T execute(String endpoint, GoogleApiCall<T> call) throws IOException {
+    return execute(endpoint, call, true);
+  }
+
+  /** Executes a call to a Google API endpoint that is not safe to repeat, such as a create or an
+   * authorization code exchange. The call is guarded by the endpoint's circuit breaker and its
+   * failures count against it, but it is never retried: after a timeout or a server error it is
+   * unknown whether the call took effect.
+   * @param endpoint the name of the endpoint, used to select its circuit breaker and tag metrics.
+   * @param call the call to execute.
+   * @param <T> the type of the call's result.
+   * @return the result of the call.
+   * @throws IOException the failure if the call did not succeed, or CircuitOpenException if the
+   * endpoint's breaker is open.
+   */
+  public <T> T executeOnce(String endpoint, GoogleApiCall<T> call) throws IOException {
+    return execute(endpoint, call, false);
+  }
+
+  private <T> T execute(String endpoint, GoogleApiCall<T> call, boolean retry)
+      throws IOException {
+    CircuitBreaker breaker = breakers.computeIfAbsent(endpoint, CircuitBreaker::new);
+    for (int attempt = 1; ; attempt++) {
+      if (!breaker.allowRequest()) {
+        breaker.rejected.increment();
+        throw new CircuitOpenException(endpoint);
+      }
+      boolean settled = false;
+      try {
+        T result = call.execute();
+        breaker.onSuccess();
+        settled = true;
+        return result;
+      } catch (IOException e) {
+        boolean transientFailure = isTransient(e);
+        if (transientFailure) {
+          breaker.onFailure();
+        } else {
+          /** The endpoint answered, so a client error does not count against its health. */
+          breaker.onSuccess();
+        }
+        settled = true;
+        if (!retry || !transientFailure || attempt >= maxAttempts) {
+          throw e;
+        }
+        long backoffMs = backoffMillis(attempt, e);
+        if (backoffMs < 0) {
+          throw e;
+        }
+        breaker.retries.increment();
+        sleep(backoffMs);
+      } finally {
+        /** Any other exception still counts as a failure, so that a trial call cannot leave the
+         * breaker half-open for good. */
+        if (!settled) {
+          breaker.onFailure();
+        }
+      }
+    }
+  }
+
+  /** Returns whether a failure is worth retrying: throttling, a server error or a network error. */
+  private static boolean isTransient(IOException e) {
+    if (e instanceof CircuitOpenException || e instanceof InterruptedIOException
+        && !(e instanceof SocketTimeoutException)) {
+      return false;
+    }
+    if (e instanceof HttpResponseException) {
+      int statusCode = ((HttpResponseException) e).getStatusCode();
+      return statusCode == 429 || statusCode >= 500;
+    }
+    return true;
+  }
+
+  /** Returns how long to wait before the next attempt, or -1 if the server asked for a longer wait
+   * than the configured maximum. */
+  private long backoffMillis(int attempt, IOException e) {
+    long ceiling = Math.min(maxBackoff.toMillis(),
+        initialBackoff.toMillis() * (1L << Math.min(attempt - 1, 20)));
+    long backoffMs = ThreadLocalRandom.current().nextLong(ceiling + 1);
+    if (e instanceof HttpResponseException) {
+      long retryAfterMs =
+          retryAfterMillis(((HttpResponseException) e).getHeaders().getRetryAfter());
+      if (retryAfterMs > maxBackoff.toMillis()) {
+        return -1;
+      }
+      backoffMs = Math.max(backoffMs, retryAfterMs);
+    }
+    return backoffMs;
+  }
+
+  /** Parses a Retry-After header given either in seconds or as an HTTP date. */
+  private static long retryAfterMillis(String retryAfter) {
+    if (retryAfter == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(retryAfter.trim()) * 1000;
+    } catch (NumberFormatException e) {
+      try {
+        return Math.max(0, ZonedDateTime.parse(retryAfter.trim(),
+            DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+            - System.currentTimeMillis());
+      } catch (DateTimeParseException ignored) {
+        return 0;
+      }
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry.");
+    }
+  }
+
+  /** A call to a Google API, such as a request's execute method. */
+  @FunctionalInterface
+  public interface GoogleApiCall<T> {
+    T execute() throws IOException;
+  }
+
+  /** Thrown instead of calling an endpoint whose circuit breaker is open. */
+  public static class CircuitOpenException extends IOException {
+    public CircuitOpenException(String endpoint) {
+      super("The " + endpoint + " endpoint is temporarily unavailable. Please try again later.");
+    }
+  }
+
+  /** A consecutive-failure circuit breaker for a single endpoint. It opens after failureThreshold
+   * transient failures in a row, rejects calls while open, and after openDuration lets one trial
+   * call through: success closes it, failure opens it again. */
+  private final class CircuitBreaker {
+    private static final int CLOSED = 0;
+    private static final int HALF_OPEN = 1;
+    private static final int OPEN = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Counter retries;
+    private final Counter rejected;
+    private volatile int state = CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    private CircuitBreaker(String endpoint) {
+      this.retries = Counter.builder("addon.resilience.retries")
+          .description("Retried Google API calls")
+          .tag("endpoint", endpoint)
+          .register(meterRegistry);
+      this.rejected = Counter.builder("addon.resilience.rejected")
+          .description("Google API calls rejected by an open circuit breaker")
+          .tag("endpoint", endpoint)
+          .register(meterRegistry);
+      Gauge.builder("addon.resilience.circuit.state", this, breaker -> breaker.state)
+          .description("Circuit breaker state: 0 closed, 1 half-open, 2 open")
+          .tag("endpoint", endpoint)
+          .register(meterRegistry);
+    }
+
+    private boolean allowRequest() {
+      if (state == CLOSED) {
+        return true;
+      }
+      lock.lock();
+      try {
+        if (state == OPEN
+            && System.currentTimeMillis() - openedAt >= openDuration.toMillis()) {
+          state = HALF_OPEN;
+          return true;
+        }
+        return state == CLOSED;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void onSuccess() {
+      if (state == CLOSED && consecutiveFailures == 0) {
+        return;
+      }
+      lock.lock();
+      try {
+        consecutiveFailures = 0;
+        state = CLOSED;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void onFailure() {
+      lock.lock();
+      try {
+        consecutiveFailures++;
+        if (state == HALF_OPEN || consecutiveFailures >= failureThreshold) {
+          state = OPEN;
+          openedAt = System.currentTimeMillis();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,251 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import com.example.content_type.models.PendingRevocation;
+import com.example.content_type.repository.PendingRevocationRepository;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.UrlEncodedContent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/** Revokes tokens at Google in the background. Revoking a user's access only waits for the token to
+ * be stored in the pending_revocations table; a small pool of workers then calls the revoke
+ * endpoint, retrying failed calls with jittered exponential backoff. Revocations survive restarts,
+ * and one whose worker stopped is claimed again once the worker's lease expires. A revocation that
+ * is given up on is marked FAILED and its token is cleared; the row is kept for failed-retention,
+ * so the failure can be investigated, and then deleted. */
+@Service
+public class RevocationService {
+  private static final Logger logger = LoggerFactory.getLogger(RevocationService.class);
+  private static final String REVOKE_URL = "https://oauth2.googleapis.com/revoke";
+
+  /** Declare the repository and services to be used in the class constructor. */
+  private final PendingRevocationRepository pendingRevocationRepository;
+  private final HttpTransportService httpTransportService;
+  private final ResilienceService resilienceService;
+  private final Executor revocationExecutor;
+  private final MeterRegistry meterRegistry;
+
+  private final int workers;
+  private final int maxAttempts;
+  private final Duration initialBackoff;
+  private final Duration maxBackoff;
+  private final long leaseMs;
+  private final Duration failedRetention;
+
+  /** The number of revocations currently being sent by this node. */
+  private final AtomicInteger runningRevocations = new AtomicInteger();
+
+  /** RevocationService constructor. Uses constructor injection to instantiate the repository,
+   * services and the worker pool.
+   * @param pendingRevocationRepository the class that interacts with stored revocations.
+   * @param httpTransportService the service that provides the shared HTTP transport.
+   * @param resilienceService the service that guards the revoke endpoint with a circuit breaker.
+   * @param revocationExecutor the worker pool that sends the revoke calls.
+   * @param meterRegistry the registry used to publish revocation outcomes.
+   * @param workers the number of revoke calls sent concurrently by this node.
+   * @param maxAttempts the number of revoke calls made before a revocation is marked FAILED.
+   * @param initialBackoff the backoff ceiling after the first unsuccessful call, doubled for each
+   * further call.
+   * @param maxBackoff the longest time between two calls for the same revocation.
+   * @param leaseMs how long a claimed revocation may take before it is claimed again.
+   * @param failedRetention how long a FAILED revocation is kept before it is deleted.
+   */
+  public RevocationService(PendingRevocationRepository pendingRevocationRepository,
+      HttpTransportService httpTransportService, ResilienceService resilienceService,
+      @Qualifier(ExecutorConfig.REVOCATION_EXECUTOR) Executor revocationExecutor,
+      MeterRegistry meterRegistry,
+      @Value("${addon.revocations.workers:2}") int workers,
+      @Value("${addon.revocations.max-attempts:10}") int maxAttempts,
+      @Value("${addon.revocations.initial-backoff:10s}") Duration initialBackoff,
+      @Value("${addon.revocations.max-backoff:30m}") Duration maxBackoff,
+      @Value("${addon.revocations.lease-ms:120000}") long leaseMs,
+      @Value("${addon.revocations.failed-retention:7d}") Duration failedRetention) {
+    this.pendingRevocationRepository = pendingRevocationRepository;
+    this.httpTransportService = httpTransportService;
+    this.resilienceService = resilienceService;
+    this.revocationExecutor = revocationExecutor;
+    this.meterRegistry = meterRegistry;
+    this.workers = workers;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoff = initialBackoff;
+    this.maxBackoff = maxBackoff;
+    this.leaseMs = leaseMs;
+    this.failedRetention = failedRetention;
+  }
+
+  /** Stores a token to be revoked by the workers.
+   * @param userId the id of the user whose token is revoked.
+   * @param token the refresh or access token to revoke.
+   */
+  public void enqueue(String userId, String token) {
+    pendingRevocationRepository.save(new PendingRevocation(userId, token));
+  }
+
+  /** Revokes a token with one call on the caller's thread, queuing it for the workers if the call
+   * is unsuccessful. Used by bulk jobs that pace their own calls.
+   * @param userId the id of the user whose token is revoked.
+   * @param token the refresh or access token to revoke.
+   * @return true if the token was revoked or was already invalid, false if it was queued.
+   */
+  public boolean revokeOrEnqueue(String userId, String token) {
+    try {
+      sendRevoke(token);
+      record("revoked");
+      return true;
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == 400) {
+        record("already_invalid");
+        return true;
+      }
+    } catch (IOException | RuntimeException e) {
+      /** Queued below. */
+    }
+    enqueue(userId, token);
+    return false;
+  }
+
+  /** Claims due revocations up to the number of free workers and hands them to the worker pool. A
+   * revocation is claimed by moving it to RUNNING; if another node claims it first, the version
+   * check fails and the revocation is skipped. */
+  @Scheduled(fixedDelayString = "${addon.revocations.poll-interval-ms:1000}")
+  public void pollRevocations() {
+    int capacity = workers - runningRevocations.get();
+    if (capacity <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (PendingRevocation revocation : pendingRevocationRepository.findDue(now,
+        PageRequest.of(0, capacity))) {
+      PendingRevocation claimedRevocation;
+      try {
+        revocation.setStatus(PendingRevocation.RUNNING);
+        revocation.setNext_attempt_at(now + leaseMs);
+        claimedRevocation = pendingRevocationRepository.save(revocation);
+      } catch (ObjectOptimisticLockingFailureException e) {
+        continue;
+      }
+      runningRevocations.incrementAndGet();
+      try {
+        revocationExecutor.execute(() -> {
+          try {
+            revoke(claimedRevocation);
+          } finally {
+            runningRevocations.decrementAndGet();
+          }
+        });
+      } catch (RuntimeException e) {
+        /** The pool is full; the revocation is picked up again once its lease expires. */
+        runningRevocations.decrementAndGet();
+        logger.warn("Could not start revocation {}", claimedRevocation.getId(), e);
+      }
+    }
+  }
+
+  /** Calls the revoke endpoint for a claimed revocation. The row is deleted once the token is
+   * revoked; otherwise the next call is scheduled, or the revocation is marked FAILED after the
+   * last attempt.
+   * @param revocation the claimed revocation.
+   */
+  private void revoke(PendingRevocation revocation) {
+    try {
+      sendRevoke(revocation.getToken());
+      record("revoked");
+      pendingRevocationRepository.delete(revocation);
+      return;
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == 400) {
+        record("already_invalid");
+        pendingRevocationRepository.delete(revocation);
+        return;
+      }
+      revocation.setLast_error(e.getStatusCode() + " " + e.getStatusMessage());
+    } catch (IOException | RuntimeException e) {
+      revocation.setLast_error(e.toString());
+    }
+
+    revocation.setAttempts(revocation.getAttempts() + 1);
+    if (revocation.getAttempts() >= maxAttempts) {
+      logger.warn("Giving up revoking the token of user {}: {}", revocation.getUser_id(),
+          revocation.getLast_error());
+      record("failed");
+      revocation.setStatus(PendingRevocation.FAILED);
+      revocation.setToken(null);
+      revocation.setNext_attempt_at(System.currentTimeMillis());
+    } else {
+      record("retried");
+      revocation.setStatus(PendingRevocation.PENDING);
+      revocation.setNext_attempt_at(System.currentTimeMillis()
+          + backoffMillis(revocation.getAttempts()));
+    }
+    try {
+      pendingRevocationRepository.save(revocation);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      /** The lease expired and another worker claimed the revocation meanwhile. */
+    }
+  }
+
+  /** Deletes the revocations that were marked FAILED longer than failed-retention ago. */
+  @Scheduled(fixedDelayString = "${addon.revocations.cleanup-interval-ms:3600000}")
+  public void deleteFailedRevocations() {
+    pendingRevocationRepository.deleteFailedBefore(
+        System.currentTimeMillis() - failedRetention.toMillis());
+  }
+
+  /** Calls the revoke endpoint through the endpoint's circuit breaker. A 400 response means the
+   * token was already revoked or has expired, so there is no grant left to revoke. */
+  private void sendRevoke(String token) throws IOException {
+    resilienceService.execute("oauth2.revoke", () -> {
+      httpTransportService.getTransport()
+          .createRequestFactory(httpTransportService.initializer(null))
+          .buildPostRequest(new GenericUrl(REVOKE_URL),
+              new UrlEncodedContent(Collections.singletonMap("token", token)))
+          .execute()
+          .disconnect();
+      return null;
+    });
+  }
+
+  /** Returns a jittered exponential backoff: a random wait between half and all of the ceiling. */
+  private long backoffMillis(int attempts) {
+    long ceiling = Math.min(maxBackoff.toMillis(),
+        initialBackoff.toMillis() * (1L << Math.min(attempts - 1, 20)));
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+  }
+
+  private void record(String outcome) {
+    Counter.builder("addon.revocations")
+        .description("Revoke calls by outcome")
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .increment();
+  }
+}
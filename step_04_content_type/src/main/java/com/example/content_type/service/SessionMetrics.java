@@ -0,0 +1,151 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/** Publishes the number of HTTP sessions and their serialized size as the addon.sessions.active,
+ * addon.sessions.bytes.average and addon.sessions.bytes.max gauges. The values are sampled
+ * periodically from the session store: the SPRING_SESSION tables when sessions are kept in JDBC,
+ * or this node's Tomcat session manager otherwise. */
+@Service
+public class SessionMetrics {
+  private static final Logger logger = LoggerFactory.getLogger(SessionMetrics.class);
+  private static final String STORE_TYPE_JDBC = "jdbc";
+
+  /** Declare the session stores to be used in the class constructor. */
+  private final StandardManager sessionManager;
+  private final JdbcTemplate jdbcTemplate;
+
+  private final boolean jdbcStore;
+  private final AtomicLong activeSessions = new AtomicLong();
+  private final AtomicLong averageBytes = new AtomicLong();
+  private final AtomicLong maxBytes = new AtomicLong();
+
+  /** SessionMetrics constructor. Uses constructor injection to instantiate the session stores.
+   * @param sessionManager the Tomcat session manager of this node.
+   * @param jdbcTemplate the template used to query the SPRING_SESSION tables.
+   * @param meterRegistry the registry used to publish the session gauges.
+   * @param storeType the configured Spring Session store type; "jdbc" samples the shared tables.
+   */
+  public SessionMetrics(StandardManager sessionManager, JdbcTemplate jdbcTemplate,
+      MeterRegistry meterRegistry,
+      @Value("${spring.session.store-type:none}") String storeType) {
+    this.sessionManager = sessionManager;
+    this.jdbcTemplate = jdbcTemplate;
+    this.jdbcStore = STORE_TYPE_JDBC.equals(storeType);
+    Gauge.builder("addon.sessions.active", activeSessions, AtomicLong::get)
+        .description("Number of active HTTP sessions")
+        .register(meterRegistry);
+    Gauge.builder("addon.sessions.bytes.average", averageBytes, AtomicLong::get)
+        .description("Average serialized size of an HTTP session")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("addon.sessions.bytes.max", maxBytes, AtomicLong::get)
+        .description("Largest serialized size of an HTTP session")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /** Samples the number and size of the sessions in the configured store. */
+  @Scheduled(fixedDelayString = "${addon.sessions.metrics-interval-ms:60000}")
+  public void sample() {
+    try {
+      if (jdbcStore) {
+        sampleJdbcSessions();
+      } else {
+        sampleTomcatSessions();
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Could not sample session metrics", e);
+    }
+  }
+
+  /** Sums the stored attribute bytes of each session in the shared tables. */
+  private void sampleJdbcSessions() {
+    Map<String, Object> row = jdbcTemplate.queryForMap(
+        "SELECT COUNT(*) AS SESSIONS, COALESCE(AVG(BYTES), 0) AS AVERAGE,"
+        + " COALESCE(MAX(BYTES), 0) AS MAXIMUM FROM (SELECT S.PRIMARY_ID,"
+        + " COALESCE(SUM(LENGTH(A.ATTRIBUTE_BYTES)), 0) AS BYTES FROM SPRING_SESSION S"
+        + " LEFT JOIN SPRING_SESSION_ATTRIBUTES A ON A.SESSION_PRIMARY_ID = S.PRIMARY_ID"
+        + " GROUP BY S.PRIMARY_ID) T");
+    activeSessions.set(((Number) row.get("SESSIONS")).longValue());
+    averageBytes.set(((Number) row.get("AVERAGE")).longValue());
+    maxBytes.set(((Number) row.get("MAXIMUM")).longValue());
+  }
+
+  /** Estimates the size of each in-memory session by serializing its attributes. */
+  private void sampleTomcatSessions() {
+    Session[] sessions = sessionManager.findSessions();
+    long total = 0;
+    long maximum = 0;
+    for (Session session : sessions) {
+      long bytes = 0;
+      try {
+        for (String name : Collections.list(session.getSession().getAttributeNames())) {
+          bytes += serializedSize(session.getSession().getAttribute(name));
+        }
+      } catch (IllegalStateException e) {
+        /** The session was invalidated while it was being sampled. */
+        continue;
+      }
+      total += bytes;
+      maximum = Math.max(maximum, bytes);
+    }
+    activeSessions.set(sessions.length);
+    averageBytes.set(sessions.length > 0 ? total / sessions.length : 0);
+    maxBytes.set(maximum);
+  }
+
+  /** Returns the number of bytes the value is serialized to, or 0 if it is not serializable. */
+  private static long serializedSize(Object value) {
+    CountingOutputStream counter = new CountingOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+      out.writeObject(value);
+    } catch (IOException e) {
+      return 0;
+    }
+    return counter.count;
+  }
+
+  /** An OutputStream that only counts the bytes written to it. */
+  private static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,663 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A DataStoreFactory that replaces FileDataStoreFactory for credential storage.
+ * FileDataStoreFactory keeps every user's credential in one serialized map behind one lock and
+ * rewrites the whole file on each change. Here each data store is split into shards by key: reads
+ * are served from memory without locking, writers only contend with writers of the same shard, and
+ * changes are appended to the shard's log file in the background, so updating one credential costs
+ * a single small append. Several changes made between flushes are written together, and a key
+ * changed more than once is written once. A shard's log is compacted when it grows well beyond its
+ * live entries.
+ *
+ * <p>Changes not yet flushed are lost if the process dies, which for credentials means the user is
+ * asked to sign in again. Each record carries a checksum, so a record left incomplete or damaged at
+ * the end of a log is dropped when the log is read; a damaged record anywhere else stops the store
+ * from opening rather than losing the records after it. A store created over a directory written by
+ * FileDataStoreFactory imports its credentials on first use, and a store whose logs were written
+ * with a different shard count is redistributed over the current shards when it is opened. */
+public class ShardedFileDataStoreFactory extends AbstractDataStoreFactory implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(ShardedFileDataStoreFactory.class);
+
+  /** A log is compacted once it holds more than MIN_RECORDS_BEFORE_COMPACTION records and more
+   * than COMPACTION_RATIO records per live entry. */
+  private static final int MIN_RECORDS_BEFORE_COMPACTION = 1024;
+  private static final int COMPACTION_RATIO = 4;
+  /** Longer keys are treated as a corrupt record; user ids are far shorter. */
+  private static final int MAX_KEY_LENGTH = 4096;
+
+  private final File dataDirectory;
+  private final int shardCount;
+  private final boolean fsync;
+  private final List<ShardedDataStore<?>> dataStores = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService flusher;
+
+  /** ShardedFileDataStoreFactory constructor.
+   * @param dataDirectory the directory the data stores are kept in.
+   * @param shardCount the number of shards, and log files, per data store.
+   * @param flushIntervalMs how often pending changes are appended to the log files.
+   * @param fsync whether each flush waits for the changes to reach the disk.
+   * @throws IOException if the data directory cannot be created.
+   */
+  public ShardedFileDataStoreFactory(File dataDirectory, int shardCount, long flushIntervalMs,
+      boolean fsync) throws IOException {
+    this.dataDirectory = dataDirectory.getCanonicalFile();
+    this.shardCount = shardCount;
+    this.fsync = fsync;
+    createOwnerOnlyDirectory(this.dataDirectory);
+    this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "credential-store-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Returns the directory the data stores are kept in. */
+  public File getDataDirectory() {
+    return dataDirectory;
+  }
+
+  @Override
+  protected <V extends Serializable> DataStore<V> createDataStore(String id) throws IOException {
+    ShardedDataStore<V> dataStore = new ShardedDataStore<>(this, id);
+    dataStores.add(dataStore);
+    return dataStore;
+  }
+
+  /** Appends all pending changes to the log files.
+   * @throws IOException if writing any shard is unsuccessful; the other shards are still written.
+   */
+  public void flush() throws IOException {
+    IOException failure = null;
+    for (ShardedDataStore<?> dataStore : dataStores) {
+      for (Shard shard : dataStore.shards) {
+        try {
+          shard.flush();
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** Stops the background flusher, writes the remaining changes and closes the log files. */
+  @Override
+  public void close() throws IOException {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      flush();
+    } finally {
+      for (ShardedDataStore<?> dataStore : dataStores) {
+        for (Shard shard : dataStore.shards) {
+          shard.close();
+        }
+      }
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException e) {
+      /** The changes stay pending and are retried on the next flush. */
+      logger.warn("Could not write credential store changes, retrying.", e);
+    } catch (RuntimeException e) {
+      logger.error("Unexpected error writing credential store changes.", e);
+    }
+  }
+
+  private static void createOwnerOnlyDirectory(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+    restrictToOwner(directory);
+  }
+
+  /** Makes a file or directory readable and writable by its owner only, where supported. */
+  private static void restrictToOwner(File file) {
+    file.setReadable(false, false);
+    file.setWritable(false, false);
+    file.setExecutable(false, false);
+    file.setReadable(true, true);
+    file.setWritable(true, true);
+    if (file.isDirectory()) {
+      file.setExecutable(true, true);
+    }
+  }
+
+  /** A data store whose entries are spread over the shards by key. */
+  private static final class ShardedDataStore<V extends Serializable> extends AbstractDataStore<V> {
+    private final Shard[] shards;
+
+    ShardedDataStore(ShardedFileDataStoreFactory factory, String id) throws IOException {
+      super(factory, id);
+      File storeDirectory = new File(factory.dataDirectory, id + ".shards");
+      File previousDirectory = new File(factory.dataDirectory, id + ".shards.previous");
+      File reshardDirectory = new File(factory.dataDirectory, id + ".shards.reshard");
+      if (!storeDirectory.exists() && previousDirectory.exists()) {
+        /** A reshard stopped between moving the old logs away and moving the new ones in. */
+        Files.move(previousDirectory.toPath(), storeDirectory.toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+      deleteDirectory(previousDirectory);
+      deleteDirectory(reshardDirectory);
+      createOwnerOnlyDirectory(storeDirectory);
+      File[] logs =
+          storeDirectory.listFiles((directory, name) -> name.matches("shard-\\d+\\.log"));
+      if (logs != null && logs.length > 0 && logs.length != factory.shardCount) {
+        reshard(logs, factory.shardCount, storeDirectory, previousDirectory, reshardDirectory);
+      }
+      shards = new Shard[factory.shardCount];
+      for (int i = 0; i < shards.length; i++) {
+        shards[i] = new Shard(new File(storeDirectory, "shard-" + i + ".log"), factory.fsync);
+      }
+      importLegacyFile(new File(factory.dataDirectory, id));
+    }
+
+    /** Redistributes the entries of logs written with another shard count over shardCount new
+     * logs. The new logs are written to a separate directory that then replaces the old one, so an
+     * interrupted reshard leaves either the old or the new logs in place. */
+    private static void reshard(File[] logs, int shardCount, File storeDirectory,
+        File previousDirectory, File reshardDirectory) throws IOException {
+      Map<String, byte[]> entries = new HashMap<>();
+      for (File log : logs) {
+        Shard shard = new Shard(log, false);
+        entries.putAll(shard.entries);
+        shard.close();
+      }
+      createOwnerOnlyDirectory(reshardDirectory);
+      Shard[] resharded = new Shard[shardCount];
+      for (int i = 0; i < shardCount; i++) {
+        resharded[i] = new Shard(new File(reshardDirectory, "shard-" + i + ".log"), true);
+      }
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        resharded[shardIndex(entry.getKey(), shardCount)].put(entry.getKey(), entry.getValue());
+      }
+      for (Shard shard : resharded) {
+        shard.flush();
+        shard.close();
+      }
+      Files.move(storeDirectory.toPath(), previousDirectory.toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      Files.move(reshardDirectory.toPath(), storeDirectory.toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+      deleteDirectory(previousDirectory);
+      logger.info("Redistributed {} entries of {} from {} to {} shards", entries.size(),
+          storeDirectory, logs.length, shardCount);
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+      File[] files = directory.listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File file : files) {
+        Files.delete(file.toPath());
+      }
+      Files.delete(directory.toPath());
+    }
+
+    /** Imports the entries of a file written by FileDataStoreFactory, which holds a serialized map
+     * from each key to its serialized value, then renames the file so it is not imported again. */
+    private void importLegacyFile(File legacyFile) throws IOException {
+      if (!legacyFile.isFile()) {
+        return;
+      }
+      HashMap<String, byte[]> legacyEntries;
+      try (InputStream in = new FileInputStream(legacyFile)) {
+        legacyEntries = IOUtils.deserialize(in);
+      }
+      if (legacyEntries != null) {
+        for (Map.Entry<String, byte[]> entry : legacyEntries.entrySet()) {
+          shardFor(entry.getKey()).put(entry.getKey(), entry.getValue());
+        }
+      }
+      for (Shard shard : shards) {
+        shard.flush();
+      }
+      Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      logger.info("Imported {} entries from {}",
+          legacyEntries != null ? legacyEntries.size() : 0, legacyFile);
+    }
+
+    private Shard shardFor(String key) {
+      return shards[shardIndex(key, shards.length)];
+    }
+
+    private static int shardIndex(String key, int shardCount) {
+      return Math.floorMod(key.hashCode(), shardCount);
+    }
+
+    @Override
+    public Set<String> keySet() {
+      Set<String> keys = new HashSet<>();
+      for (Shard shard : shards) {
+        keys.addAll(shard.entries.keySet());
+      }
+      return Collections.unmodifiableSet(keys);
+    }
+
+    @Override
+    public Collection<V> values() throws IOException {
+      List<V> values = new ArrayList<>();
+      for (Shard shard : shards) {
+        for (byte[] bytes : shard.entries.values()) {
+          values.add(IOUtils.<V>deserialize(bytes));
+        }
+      }
+      return Collections.unmodifiableList(values);
+    }
+
+    @Override
+    public V get(String key) throws IOException {
+      if (key == null) {
+        return null;
+      }
+      /** Values are kept serialized so every caller receives its own copy, as with a file. */
+      return IOUtils.deserialize(shardFor(key).entries.get(key));
+    }
+
+    @Override
+    public DataStore<V> set(String key, V value) throws IOException {
+      if (key == null || value == null) {
+        throw new NullPointerException();
+      }
+      shardFor(key).put(key, IOUtils.serialize(value));
+      return this;
+    }
+
+    @Override
+    public DataStore<V> clear() {
+      for (Shard shard : shards) {
+        shard.clear();
+      }
+      return this;
+    }
+
+    @Override
+    public DataStore<V> delete(String key) {
+      if (key != null) {
+        shardFor(key).put(key, null);
+      }
+      return this;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+      return key != null && shardFor(key).entries.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(V value) throws IOException {
+      if (value == null) {
+        return false;
+      }
+      byte[] serialized = IOUtils.serialize(value);
+      for (Shard shard : shards) {
+        for (byte[] bytes : shard.entries.values()) {
+          if (Arrays.equals(serialized, bytes)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public int size() {
+      int size = 0;
+      for (Shard shard : shards) {
+        size += shard.entries.size();
+      }
+      return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      for (Shard shard : shards) {
+        if (!shard.entries.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** One shard of a data store: its live entries, the changes not yet written and its log file.
+   * Each log record is the key followed by the serialized value, or by -1 for a deletion, and a
+   * CRC32 of the record. */
+  private static final class Shard {
+    private final File logFile;
+    private final boolean fsync;
+    private final ConcurrentHashMap<String, byte[]> entries = new ConcurrentHashMap<>();
+
+    /** Guards pending, so that the order of pending changes matches the order of the entries. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Serializes writes to the log file, without blocking writers of entries meanwhile. */
+    private final ReentrantLock ioLock = new ReentrantLock();
+    /** The latest unwritten change per key; a null value is a deletion. */
+    private Map<String, byte[]> pending = new LinkedHashMap<>();
+
+    private FileChannel channel;
+    private long records;
+    /** Set when a failed append could not be removed from the log, which must then be rewritten
+     * before anything else is appended to it. */
+    private boolean rewriteLog;
+
+    Shard(File logFile, boolean fsync) throws IOException {
+      this.logFile = logFile;
+      this.fsync = fsync;
+      long validLength = load();
+      channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      restrictToOwner(logFile);
+      if (channel.size() > validLength) {
+        /** Drop a record that was only partly written, or damaged, when the process stopped. */
+        logger.warn("Truncating incomplete record at the end of {}", logFile);
+        channel.truncate(validLength);
+      }
+      channel.position(validLength);
+    }
+
+    /** Replays the log into the entries and returns the length of its valid records. A last record
+     * that is incomplete, fails its checksum or claims more bytes than the file has left was torn
+     * when the process stopped, and reading stops there.
+     * @throws IOException if a damaged record is followed by more data. The log is left untouched,
+     * since dropping the rest would lose the valid records after it.
+     */
+    private long load() throws IOException {
+      if (!logFile.isFile()) {
+        return 0;
+      }
+      long fileLength = logFile.length();
+      long validLength = 0;
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(logFile)))) {
+        while (true) {
+          int keyLength = in.readInt();
+          if (keyLength < 0 || keyLength > MAX_KEY_LENGTH) {
+            throw corruptRecord(validLength);
+          }
+          byte[] key = new byte[keyLength];
+          in.readFully(key);
+          int valueLength = in.readInt();
+          long recordLength = 8L + keyLength + Math.max(valueLength, 0) + 4;
+          if (valueLength < -1) {
+            throw corruptRecord(validLength);
+          }
+          if (validLength + recordLength > fileLength) {
+            return validLength;
+          }
+          byte[] value = null;
+          if (valueLength >= 0) {
+            value = new byte[valueLength];
+            in.readFully(value);
+          }
+          if (in.readInt() != checksum(key, value)) {
+            if (validLength + recordLength < fileLength) {
+              throw corruptRecord(validLength);
+            }
+            return validLength;
+          }
+          String keyString = new String(key, StandardCharsets.UTF_8);
+          if (value == null) {
+            entries.remove(keyString);
+          } else {
+            entries.put(keyString, value);
+          }
+          validLength += recordLength;
+          records++;
+        }
+      } catch (EOFException e) {
+        return validLength;
+      }
+    }
+
+    private IOException corruptRecord(long offset) {
+      logger.error("Damaged record at offset {} of {}; not truncating it", offset, logFile);
+      return new IOException("The record at offset " + offset + " of " + logFile
+          + " is damaged and followed by more records. Restore the file or move it away.");
+    }
+
+    void put(String key, byte[] value) {
+      lock.lock();
+      try {
+        if (value == null) {
+          entries.remove(key);
+        } else {
+          entries.put(key, value);
+        }
+        pending.put(key, value);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void clear() {
+      lock.lock();
+      try {
+        for (String key : entries.keySet()) {
+          pending.put(key, null);
+        }
+        entries.clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Appends the pending changes to the log in one write, compacting the log if needed. */
+    void flush() throws IOException {
+      ioLock.lock();
+      try {
+        Map<String, byte[]> batch;
+        lock.lock();
+        try {
+          if (pending.isEmpty()) {
+            return;
+          }
+          batch = pending;
+          pending = new LinkedHashMap<>();
+        } finally {
+          lock.unlock();
+        }
+        try {
+          if (rewriteLog) {
+            compact();
+          }
+          append(batch);
+        } catch (IOException e) {
+          lock.lock();
+          try {
+            /** Changes made since the batch was taken are newer and take precedence. */
+            batch.putAll(pending);
+            pending = batch;
+          } finally {
+            lock.unlock();
+          }
+          throw e;
+        }
+        if (records > MIN_RECORDS_BEFORE_COMPACTION
+            && records > (long) COMPACTION_RATIO * entries.size()) {
+          compact();
+        }
+      } finally {
+        ioLock.unlock();
+      }
+    }
+
+    private void append(Map<String, byte[]> batch) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        for (Map.Entry<String, byte[]> change : batch.entrySet()) {
+          writeRecord(out, change.getKey(), change.getValue());
+        }
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      long start = channel.position();
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        if (fsync) {
+          channel.force(false);
+        }
+      } catch (IOException e) {
+        /** Remove the partly written batch, so later records do not follow a torn one. The batch
+         * stays pending and is written again by the next flush. */
+        try {
+          channel.truncate(start);
+          channel.position(start);
+        } catch (IOException truncateFailure) {
+          e.addSuppressed(truncateFailure);
+          rewriteLog = true;
+        }
+        throw e;
+      }
+      records += batch.size();
+    }
+
+    /** Rewrites the log with only the live entries and atomically replaces the old log. Changes
+     * made during compaction are still pending and are appended to the new log afterwards. */
+    private void compact() throws IOException {
+      File compactFile = new File(logFile.getPath() + ".compact");
+      Map<String, byte[]> snapshot = new HashMap<>(entries);
+      /** The new log is written and renamed through its own channel, which then replaces the
+       * current one; if any step fails, the current log and channel are left as they were. */
+      FileChannel compacted = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+          for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+            writeRecord(data, entry.getKey(), entry.getValue());
+          }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+          compacted.write(buffer);
+        }
+        compacted.force(true);
+        restrictToOwner(compactFile);
+        Files.move(compactFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        compacted.close();
+        Files.deleteIfExists(compactFile.toPath());
+        throw e;
+      }
+      FileChannel replaced = channel;
+      channel = compacted;
+      try {
+        replaced.close();
+      } catch (IOException e) {
+        logger.warn("Could not close the replaced log of {}", logFile, e);
+      }
+      records = snapshot.size();
+      rewriteLog = false;
+      logger.debug("Compacted {} to {} entries", logFile, records);
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, byte[] value)
+        throws IOException {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(keyBytes.length);
+      out.write(keyBytes);
+      if (value == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(value.length);
+        out.write(value);
+      }
+      out.writeInt(checksum(keyBytes, value));
+    }
+
+    /** Returns the CRC32 of a record's key and value lengths, key and value. */
+    private static int checksum(byte[] key, byte[] value) {
+      CRC32 crc = new CRC32();
+      crc.update(ByteBuffer.allocate(8).putInt(key.length)
+          .putInt(value == null ? -1 : value.length).array());
+      crc.update(key);
+      if (value != null) {
+        crc.update(value);
+      }
+      return (int) crc.getValue();
+    }
+
+    void close() {
+      ioLock.lock();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.warn("Could not close {}", logFile, e);
+      } finally {
+        ioLock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsRefreshedEvent;
+import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.DataStoreCredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+/** Coalesces concurrent refreshes of the same user's access token. A user's parallel requests, or
+ * several add-on iframes opened at once, each hold their own Credential object; without
+ * coordination each of them would call the token endpoint and save the result. Credentials built
+ * by this class refresh through a per-user single flight instead: the first caller calls the token
+ * endpoint and saves the token, and callers arriving meanwhile wait for its response and apply it
+ * to their own Credential without saving it again. Once a refreshed token is saved, a
+ * CredentialsRefreshedEvent is published. */
+@Component
+public class TokenRefreshCoordinator {
+
+  /** Refreshes in progress, by user id. */
+  private final ConcurrentHashMap<String, CompletableFuture<TokenResponse>> inFlight =
+      new ConcurrentHashMap<>();
+
+  private final ApplicationEventPublisher eventPublisher;
+  private final Duration waitTimeout;
+  private final Counter coalesced;
+
+  /** TokenRefreshCoordinator constructor.
+   * @param eventPublisher the publisher used to announce saved token refreshes.
+   * @param meterRegistry the registry used to publish the number of suppressed refreshes.
+   * @param waitTimeout how long a caller waits for a refresh started by another caller.
+   */
+  public TokenRefreshCoordinator(ApplicationEventPublisher eventPublisher,
+      MeterRegistry meterRegistry,
+      @Value("${addon.token-refresh.wait-timeout:30s}") Duration waitTimeout) {
+    this.eventPublisher = eventPublisher;
+    this.waitTimeout = waitTimeout;
+    this.coalesced = Counter.builder("addon.token-refresh.coalesced")
+        .description("Token refreshes suppressed because one was already in progress for the user")
+        .register(meterRegistry);
+  }
+
+  /** Builds an empty Credential for a user, configured the same way as the credentials built by
+   * the flow, whose refreshes are coordinated with the user's other credentials.
+   * @param flow the authorization code flow.
+   * @param userId the id of the user.
+   * @return the new Credential, without tokens.
+   */
+  public Credential newCredential(AuthorizationCodeFlow flow, String userId) {
+    Credential.Builder builder = new Credential.Builder(flow.getMethod())
+        .setTransport(flow.getTransport())
+        .setJsonFactory(flow.getJsonFactory())
+        .setTokenServerEncodedUrl(flow.getTokenServerEncodedUrl())
+        .setClientAuthentication(flow.getClientAuthentication())
+        .setRequestInitializer(flow.getRequestInitializer())
+        .setClock(flow.getClock());
+    if (flow.getCredentialDataStore() != null) {
+      builder.addRefreshListener(new LeaderOnlyRefreshListener(
+          new DataStoreCredentialRefreshListener(userId, flow.getCredentialDataStore())));
+    }
+    builder.getRefreshListeners().addAll(flow.getRefreshListeners());
+    return new CoordinatedCredential(builder, userId);
+  }
+
+  /** Returns the id of the user a Credential built by newCredential belongs to.
+   * @param credential the credential.
+   * @return the user id, or null if the credential was not built by this class.
+   */
+  public static String getUserId(Credential credential) {
+    return credential instanceof CoordinatedCredential
+        ? ((CoordinatedCredential) credential).userId : null;
+  }
+
+  /** Requests a new access token for the credential, or waits for the response of the request
+   * already in progress for the user. */
+  private TokenResponse executeRefreshToken(CoordinatedCredential credential) throws IOException {
+    CompletableFuture<TokenResponse> future = new CompletableFuture<>();
+    CompletableFuture<TokenResponse> existing = inFlight.putIfAbsent(credential.userId, future);
+    credential.shared = existing != null;
+    if (existing != null) {
+      coalesced.increment();
+      return await(existing);
+    }
+
+    try {
+      TokenResponse tokenResponse = credential.executeRefreshTokenDirectly();
+      future.complete(tokenResponse);
+      return tokenResponse;
+    } catch (IOException | RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(credential.userId, future);
+    }
+  }
+
+  /** Waits for another caller's token request, rethrowing its failure. */
+  private TokenResponse await(CompletableFuture<TokenResponse> existing) throws IOException {
+    try {
+      return existing.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new InterruptedIOException("Timed out waiting for a concurrent token refresh.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a token refresh.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Passes refresh outcomes on only for the caller that requested the token, so that a response
+   * shared by several callers is saved once. */
+  private final class LeaderOnlyRefreshListener implements CredentialRefreshListener {
+    private final CredentialRefreshListener delegate;
+
+    private LeaderOnlyRefreshListener(CredentialRefreshListener delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void onTokenResponse(Credential credential, TokenResponse tokenResponse)
+        throws IOException {
+      if (!((CoordinatedCredential) credential).shared) {
+        delegate.onTokenResponse(credential, tokenResponse);
+        eventPublisher.publishEvent(
+            new CredentialsRefreshedEvent(((CoordinatedCredential) credential).userId));
+      }
+    }
+
+    @Override
+    public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse)
+        throws IOException {
+      if (!((CoordinatedCredential) credential).shared) {
+        delegate.onTokenErrorResponse(credential, tokenErrorResponse);
+      }
+    }
+  }
+
+  /** A Credential whose refreshes go through the user's single flight. */
+  private final class CoordinatedCredential extends Credential {
+    private final String userId;
+
+    /** Whether the last refresh used another caller's response. Only read and written by the
+     * thread refreshing the credential, which holds the credential's lock. */
+    private boolean shared;
+
+    private CoordinatedCredential(Credential.Builder builder, String userId) {
+      super(builder);
+      this.userId = userId;
+    }
+
+    @Override
+    protected TokenResponse executeRefreshToken() throws IOException {
+      return TokenRefreshCoordinator.this.executeRefreshToken(this);
+    }
+
+    private TokenResponse executeRefreshTokenDirectly() throws IOException {
+      return super.executeRefreshToken();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/** Refreshes the access tokens of recently active users shortly before they expire, so that the
+ * refresh round trip does not land on a request. Each request that uses a user's credentials marks
+ * the user as active; users who have not made a request within the active window are forgotten and
+ * their tokens are refreshed lazily again. Refreshes run in batches of bounded size on the Google
+ * API executor, soonest expiry first. The credential objects are refreshed in place, so sessions
+ * and cached Classroom clients holding them see the new token, and the new token is saved to the
+ * credential data store by the credential's refresh listener. */
+@Component
+public class TokenRefreshScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(TokenRefreshScheduler.class);
+
+  /** Credentials used by recently active users, by user id. */
+  private final Cache<String, Credential> activeCredentials;
+
+  /** Users whose refresh has been submitted but has not completed yet. */
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+  private final ResilienceService resilienceService;
+  private final ApplicationEventPublisher eventPublisher;
+  private final Executor googleApiExecutor;
+  private final MeterRegistry meterRegistry;
+
+  private final boolean enabled;
+  private final Duration leadTime;
+  private final int batchSize;
+
+  private final Counter refreshed;
+  private final Timer leadTimeTimer;
+
+  /** TokenRefreshScheduler constructor.
+   * @param resilienceService the service that retries transient token endpoint failures.
+   * @param eventPublisher the publisher used to announce credentials that can no longer be
+   * refreshed.
+   * @param googleApiExecutor the bounded executor the refreshes run on.
+   * @param meterRegistry the registry used to publish refresh metrics.
+   * @param enabled whether tokens are refreshed proactively.
+   * @param activeWindow how long after their last request a user's token is kept fresh.
+   * @param leadTime how long before expiry a token is refreshed.
+   * @param batchSize the maximum number of refreshes started per run.
+   * @param maximumSize the maximum number of active users tracked.
+   */
+  public TokenRefreshScheduler(ResilienceService resilienceService,
+      ApplicationEventPublisher eventPublisher,
+      @Qualifier(ExecutorConfig.GOOGLE_API_EXECUTOR) Executor googleApiExecutor,
+      MeterRegistry meterRegistry,
+      @Value("${addon.token-refresh.enabled:true}") boolean enabled,
+      @Value("${addon.token-refresh.active-window:30m}") Duration activeWindow,
+      @Value("${addon.token-refresh.lead-time:5m}") Duration leadTime,
+      @Value("${addon.token-refresh.batch-size:50}") int batchSize,
+      @Value("${addon.token-refresh.maximum-size:10000}") long maximumSize) {
+    this.resilienceService = resilienceService;
+    this.eventPublisher = eventPublisher;
+    this.googleApiExecutor = googleApiExecutor;
+    this.meterRegistry = meterRegistry;
+    this.enabled = enabled;
+    this.leadTime = leadTime;
+    this.batchSize = batchSize;
+    this.activeCredentials = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(activeWindow)
+        .build();
+    this.refreshed = Counter.builder("addon.token-refresh.refreshed")
+        .description("Access tokens refreshed ahead of expiry")
+        .register(meterRegistry);
+    this.leadTimeTimer = Timer.builder("addon.token-refresh.lead-time")
+        .description("Remaining lifetime of access tokens when they were refreshed")
+        .register(meterRegistry);
+    Gauge.builder("addon.token-refresh.active-users", activeCredentials, Cache::estimatedSize)
+        .description("Users whose access tokens are kept fresh")
+        .register(meterRegistry);
+  }
+
+  /** Records that a user made a request with the given credentials.
+   * @param userId the id of the user.
+   * @param credential the credentials used for the request.
+   */
+  public void markActive(String userId, Credential credential) {
+    if (enabled && userId != null && credential != null && credential.getRefreshToken() != null) {
+      activeCredentials.put(userId, credential);
+    }
+  }
+
+  /** Starts refreshes for active users whose tokens expire within the lead time, soonest first,
+   * up to the batch size. Users whose previous refresh is still running are skipped. */
+  @Scheduled(fixedDelayString = "${addon.token-refresh.interval-ms:30000}")
+  public void refreshExpiringTokens() {
+    if (!enabled) {
+      return;
+    }
+    long refreshBefore = System.currentTimeMillis() + leadTime.toMillis();
+    List<Map.Entry<String, Credential>> expiring = new ArrayList<>();
+    for (Map.Entry<String, Credential> entry : activeCredentials.asMap().entrySet()) {
+      Long expirationTime = entry.getValue().getExpirationTimeMilliseconds();
+      if (expirationTime != null && expirationTime <= refreshBefore
+          && !inFlight.contains(entry.getKey())) {
+        expiring.add(entry);
+      }
+    }
+    expiring.sort(Comparator.comparingLong(entry -> {
+      Long expirationTime = entry.getValue().getExpirationTimeMilliseconds();
+      return expirationTime != null ? expirationTime : Long.MAX_VALUE;
+    }));
+
+    for (Map.Entry<String, Credential> entry : expiring.subList(0,
+        Math.min(batchSize, expiring.size()))) {
+      String userId = entry.getKey();
+      Credential credential = entry.getValue();
+      if (!inFlight.add(userId)) {
+        continue;
+      }
+      try {
+        googleApiExecutor.execute(() -> {
+          try {
+            refresh(userId, credential);
+          } finally {
+            inFlight.remove(userId);
+          }
+        });
+      } catch (RuntimeException e) {
+        /** The executor is saturated; the token is picked up again on the next run. */
+        inFlight.remove(userId);
+        break;
+      }
+    }
+  }
+
+  /** Forgets a user whose credentials were revoked or cleared. */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    activeCredentials.invalidate(event.getUserId());
+  }
+
+  private void refresh(String userId, Credential credential) {
+    Long expirationTime = credential.getExpirationTimeMilliseconds();
+    long remainingMs = expirationTime != null
+        ? Math.max(0, expirationTime - System.currentTimeMillis()) : 0;
+    if (credential.getRefreshToken() == null) {
+      recordFailure("no_refresh_token");
+      return;
+    }
+    try {
+      resilienceService.execute("oauth2.token", () -> {
+        /** Credential.refreshToken returns false rather than throwing when the token endpoint
+         * answers with a server error, which has to be retried and counted as a failure. */
+        if (!credential.refreshToken()) {
+          throw new IOException("The token endpoint did not return a new access token.");
+        }
+        return null;
+      });
+      refreshed.increment();
+      leadTimeTimer.record(Duration.ofMillis(remainingMs));
+    } catch (TokenResponseException e) {
+      String error = e.getDetails() != null ? e.getDetails().getError() : null;
+      recordFailure(error != null ? error : String.valueOf(e.getStatusCode()));
+      if ("invalid_grant".equals(error)) {
+        /** The grant was revoked or expired; the user has to sign in again. */
+        logger.info("Refresh token of user {} is no longer valid", userId);
+        activeCredentials.asMap().remove(userId, credential);
+        eventPublisher.publishEvent(new CredentialsInvalidatedEvent(userId));
+      }
+    } catch (Exception e) {
+      recordFailure("error");
+      logger.warn("Could not refresh the access token of user {}", userId, e);
+    }
+  }
+
+  private void recordFailure(String reason) {
+    Counter.builder("addon.token-refresh.failures")
+        .description("Proactive access token refreshes that failed")
+        .tag("reason", reason)
+        .register(meterRegistry)
+        .increment();
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.example.content_type.events.CredentialsRefreshedEvent;
+import com.example.content_type.models.UserAccount;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/** A near cache of users and their stored credentials, as read by AuthService.getUserAccount when
+ * the add-on is opened. Entries are dropped when the user is saved, signs in again, or has their
+ * credentials refreshed, revoked or cleared, on this node or, through the
+ * ClusterInvalidationService, on another node. */
+@Component
+public class UserAccountCache {
+
+  /** Entries are keyed by user id. A user being read is held as an incomplete future, so that
+   * concurrent callers wait for the same read. */
+  private final AsyncCache<String, UserAccount> cache;
+
+  /** UserAccountCache constructor.
+   * @param meterRegistry the registry used to publish cache hit, miss and eviction metrics.
+   * @param maximumSize the maximum number of users kept in the cache.
+   * @param timeToLive how long a user may be served before it is read again, bounding staleness
+   * if an invalidation is missed.
+   */
+  public UserAccountCache(MeterRegistry meterRegistry,
+      @Value("${addon.user-cache.maximum-size:10000}") long maximumSize,
+      @Value("${addon.user-cache.time-to-live:10m}") Duration timeToLive) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(timeToLive)
+        .recordStats()
+        .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "addon.users");
+  }
+
+  /** Returns the user and their stored credentials, loading them on a miss. Users that do not
+   * exist are not cached.
+   * @param userId the id of the user.
+   * @param loader the call that reads the user from persistent storage.
+   * @return the user and their credentials, or null if the user does not exist.
+   * @throws Exception if loading the user is unsuccessful.
+   */
+  public UserAccount get(String userId, UserAccountLoader loader) throws Exception {
+    /** The first caller reads the user itself, after the cache has mapped the user to its
+     * future. Invalidating the user while the read is in flight drops its result, so a read that
+     * started before the change is not cached. */
+    CompletableFuture<UserAccount> load = new CompletableFuture<>();
+    CompletableFuture<UserAccount> userAccount = cache.get(userId, (k, executor) -> load);
+    if (userAccount == load) {
+      try {
+        load.complete(loader.load());
+      } catch (Exception e) {
+        load.completeExceptionally(e);
+      }
+    }
+    try {
+      return userAccount.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Drops a user whose record or stored credentials changed.
+   * @param userId the id of the user.
+   */
+  public void invalidate(String userId) {
+    cache.synchronous().invalidate(userId);
+  }
+
+  /** Drops the user when their credentials are revoked or cleared.
+   * @param event the event naming the user whose credentials are no longer valid.
+   */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    cache.synchronous().invalidate(event.getUserId());
+  }
+
+  /** Drops the user when a refreshed access token replaces their stored one.
+   * @param event the event naming the user whose access token was refreshed.
+   */
+  @EventListener
+  public void onCredentialsRefreshed(CredentialsRefreshedEvent event) {
+    cache.synchronous().invalidate(event.getUserId());
+  }
+
+  /** Loads a user for a cache miss. */
+  @FunctionalInterface
+  public interface UserAccountLoader {
+    UserAccount load() throws Exception;
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.events.CredentialsInvalidatedEvent;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.services.oauth2.model.Userinfo;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/** A per-user cache of Userinfo. At sign-in the entry is built from the claims of the verified ID
+ * token, so neither the callback nor the pages rendered afterwards call the Userinfo endpoint until
+ * the entry expires. */
+@Component
+public class UserinfoCache {
+
+  /** Entries are keyed by user id. A Userinfo being fetched is held as an incomplete future, so
+   * that concurrent callers wait for the same call. */
+  private final AsyncCache<String, Userinfo> cache;
+
+  /** UserinfoCache constructor.
+   * @param meterRegistry the registry used to publish cache hit, miss and eviction metrics.
+   * @param maximumSize the maximum number of users whose Userinfo is kept in the cache.
+   * @param timeToLive how long a Userinfo may be served before it is fetched again.
+   */
+  public UserinfoCache(MeterRegistry meterRegistry,
+      @Value("${addon.userinfo.maximum-size:10000}") long maximumSize,
+      @Value("${addon.userinfo.time-to-live:10m}") Duration timeToLive) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(timeToLive)
+        .recordStats()
+        .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "addon.userinfo");
+  }
+
+  /** Returns the user's Userinfo, loading it from the Userinfo endpoint on a miss.
+   * @param userId the id of the user. If null, the Userinfo is loaded without caching.
+   * @param loader the call that fetches the Userinfo.
+   * @return the Userinfo of the user.
+   * @throws IOException if loading the Userinfo is unsuccessful.
+   */
+  public Userinfo get(String userId, UserinfoLoader loader) throws IOException {
+    if (userId == null) {
+      return loader.load();
+    }
+    /** The first caller fetches the Userinfo itself, without holding a lock of the cache. An
+     * invalidation while the call is in flight drops its result. */
+    CompletableFuture<Userinfo> load = new CompletableFuture<>();
+    CompletableFuture<Userinfo> userinfo = cache.get(userId, (k, executor) -> load);
+    if (userinfo == load) {
+      try {
+        load.complete(loader.load());
+      } catch (IOException | RuntimeException e) {
+        load.completeExceptionally(e);
+      }
+    }
+    try {
+      return userinfo.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Stores a Userinfo obtained without calling the Userinfo endpoint, such as one built from the
+   * claims of a verified ID token.
+   * @param userId the id of the user.
+   * @param userinfo the user's Userinfo.
+   */
+  public void put(String userId, Userinfo userinfo) {
+    cache.put(userId, CompletableFuture.completedFuture(userinfo));
+  }
+
+  /** Drops the user's Userinfo when their credentials are revoked or cleared.
+   * @param event the event naming the user whose credentials are no longer valid.
+   */
+  @EventListener
+  public void onCredentialsInvalidated(CredentialsInvalidatedEvent event) {
+    cache.synchronous().invalidate(event.getUserId());
+  }
+
+  /** Fetches the Userinfo for a cache miss. */
+  @FunctionalInterface
+  public interface UserinfoLoader {
+    Userinfo load() throws IOException;
+  }
+}
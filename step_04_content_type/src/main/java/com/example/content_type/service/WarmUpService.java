@@ -0,0 +1,275 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import com.example.content_type.config.ExecutorConfig;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.Writer;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternUtils;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Service;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.Context;
+
+/** Warms the application up before it reports ready. Spring Boot only marks the application as
+ * accepting traffic once every ApplicationRunner has returned, so the readiness probe at
+ * /actuator/health/readiness stays down while the configured steps run. All steps but requests run
+ * by default:
+ * <ul>
+ *   <li>secrets: parses client_secret.json and builds the authorization code flow.</li>
+ *   <li>id-token-keys: fetches the ID token signing keys.</li>
+ *   <li>connections: opens pooled TLS connections to the Google API hosts.</li>
+ *   <li>templates: parses every Thymeleaf template under templates/.</li>
+ *   <li>repositories: runs a query through every repository, loading the Hibernate metadata and
+ *   filling the database connection pool.</li>
+ *   <li>requests: sends synthetic requests through AuthController and AttachmentController on
+ *   the local server, loading and compiling the request path. Opt-in, since the local server's
+ *   certificate must be trusted by this JVM.</li>
+ * </ul>
+ * A failing step is logged and skipped so that an unavailable dependency does not keep the
+ * application from starting. Each step's duration is published as the addon.warm-up timer, tagged
+ * with the step and its outcome. */
+@Service
+public class WarmUpService implements ApplicationRunner {
+  private static final Logger logger = LoggerFactory.getLogger(WarmUpService.class);
+  private static final String TEMPLATE_SUFFIX = ".html";
+
+  /** Declare the services whose lazy initialization is run ahead of the first request. */
+  private final AuthFlowManager authFlowManager;
+  private final IdTokenVerifierService idTokenVerifierService;
+  private final HttpTransportService httpTransportService;
+  private final ITemplateEngine templateEngine;
+  private final ResourcePatternResolver resourcePatternResolver;
+  private final List<CrudRepository<?, ?>> repositories;
+  private final Executor googleApiExecutor;
+  private final ApplicationEventPublisher eventPublisher;
+  private final MeterRegistry meterRegistry;
+
+  private final boolean enabled;
+  private final List<String> steps;
+  private final List<String> hosts;
+  private final int connectionsPerHost;
+  private final String baseUrl;
+  private final List<String> requestPaths;
+  private final int requestIterations;
+  private final Duration requestTimeout;
+
+  /** WarmUpService constructor. Uses constructor injection to instantiate the services,
+   * repositories and template engine that are warmed up.
+   * @param authFlowManager the manager that parses the client secrets and builds the flow.
+   * @param idTokenVerifierService the service that caches the ID token signing keys.
+   * @param httpTransportService the service that provides the pooled HTTP transport.
+   * @param templateEngine the Thymeleaf engine that renders the pages.
+   * @param resourceLoader the loader used to list the templates.
+   * @param repositories every repository of the application.
+   * @param googleApiExecutor the executor used to open connections concurrently.
+   * @param eventPublisher the publisher used to report the readiness state.
+   * @param meterRegistry the registry used to publish the step timings.
+   * @param enabled whether the warm-up runs at all.
+   * @param steps the steps to run, in order.
+   * @param hosts the Google API hosts to open connections to.
+   * @param connectionsPerHost the number of connections opened to each host.
+   * @param baseUrl the base URL of this server used for synthetic requests.
+   * @param requestPaths the paths requested by the requests step, with their query strings.
+   * @param requestIterations how many times each path is requested.
+   * @param requestTimeout the timeout of each synthetic request.
+   */
+  public WarmUpService(AuthFlowManager authFlowManager,
+      IdTokenVerifierService idTokenVerifierService, HttpTransportService httpTransportService,
+      ITemplateEngine templateEngine, ResourceLoader resourceLoader,
+      List<CrudRepository<?, ?>> repositories,
+      @Qualifier(ExecutorConfig.GOOGLE_API_EXECUTOR) Executor googleApiExecutor,
+      ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry,
+      @Value("${addon.warm-up.enabled:true}") boolean enabled,
+      @Value("${addon.warm-up.steps:secrets,id-token-keys,connections,templates,repositories}")
+          List<String> steps,
+      @Value("${addon.warm-up.hosts:https://oauth2.googleapis.com/,"
+          + "https://classroom.googleapis.com/}") List<String> hosts,
+      @Value("${addon.warm-up.connections-per-host:4}") int connectionsPerHost,
+      @Value("${addon.warm-up.base-url:https://localhost:${server.port:8080}}") String baseUrl,
+      @Value("${addon.warm-up.request-paths:/,/attachment-options}") List<String> requestPaths,
+      @Value("${addon.warm-up.request-iterations:50}") int requestIterations,
+      @Value("${addon.warm-up.request-timeout:5s}") Duration requestTimeout) {
+    this.authFlowManager = authFlowManager;
+    this.idTokenVerifierService = idTokenVerifierService;
+    this.httpTransportService = httpTransportService;
+    this.templateEngine = templateEngine;
+    this.resourcePatternResolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
+    this.repositories = repositories;
+    this.googleApiExecutor = googleApiExecutor;
+    this.eventPublisher = eventPublisher;
+    this.meterRegistry = meterRegistry;
+    this.enabled = enabled;
+    this.steps = steps;
+    this.hosts = hosts;
+    this.connectionsPerHost = connectionsPerHost;
+    this.baseUrl = baseUrl;
+    this.requestPaths = requestPaths;
+    this.requestIterations = requestIterations;
+    this.requestTimeout = requestTimeout;
+  }
+
+  /** Runs the configured steps, keeping the application out of the load balancer meanwhile.
+   * @param args the application arguments, not used.
+   */
+  @Override
+  public void run(ApplicationArguments args) {
+    if (!enabled) {
+      return;
+    }
+    AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+    long start = System.nanoTime();
+    for (String step : steps) {
+      runStep(step.trim());
+    }
+    logger.info("Warm-up finished in {} ms",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /** Runs and times one step, logging its failure. */
+  private void runStep(String step) {
+    long start = System.nanoTime();
+    String outcome = "success";
+    try {
+      switch (step) {
+        case "secrets":
+          authFlowManager.getFlow();
+          break;
+        case "id-token-keys":
+          idTokenVerifierService.prefetchKeys();
+          break;
+        case "connections":
+          openConnections();
+          break;
+        case "templates":
+          parseTemplates();
+          break;
+        case "repositories":
+          primeRepositories();
+          break;
+        case "requests":
+          sendSyntheticRequests();
+          break;
+        default:
+          outcome = "unknown";
+          logger.warn("Unknown warm-up step {}", step);
+      }
+    } catch (Exception e) {
+      outcome = "failure";
+      logger.warn("Warm-up step {} failed", step, e);
+    }
+    long elapsed = System.nanoTime() - start;
+    Timer.builder("addon.warm-up")
+        .description("Time taken by each warm-up step")
+        .tag("step", step)
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .record(elapsed, TimeUnit.NANOSECONDS);
+    logger.info("Warm-up step {} took {} ms ({})", step, TimeUnit.NANOSECONDS.toMillis(elapsed),
+        outcome);
+  }
+
+  /** Opens connectionsPerHost connections to each host at once, so that the TLS handshakes are
+   * done and the connections are left idle in the shared pool. */
+  private void openConnections() {
+    List<CompletableFuture<Void>> requests = new ArrayList<>();
+    for (String host : hosts) {
+      for (int i = 0; i < connectionsPerHost; i++) {
+        requests.add(CompletableFuture.runAsync(() -> {
+          try {
+            HttpResponse response = httpTransportService.getTransport()
+                .createRequestFactory(httpTransportService.initializer(null))
+                .buildGetRequest(new GenericUrl(host.trim()))
+                .setThrowExceptionOnExecuteError(false)
+                .execute();
+            /** Reading the whole body returns the connection to the pool. */
+            response.parseAsString();
+          } catch (Exception e) {
+            throw new IllegalStateException("Could not connect to " + host, e);
+          }
+        }, googleApiExecutor));
+      }
+    }
+    CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).join();
+  }
+
+  /** Processes every template once. Templates are cached when they are parsed, so a template that
+   * fails to render without request variables is still cached. */
+  private void parseTemplates() throws Exception {
+    Writer discard = Writer.nullWriter();
+    for (Resource resource : resourcePatternResolver.getResources(
+        "classpath:/templates/**/*" + TEMPLATE_SUFFIX)) {
+      String path = resource.getURL().getPath();
+      String name = path.substring(path.lastIndexOf("/templates/") + "/templates/".length(),
+          path.length() - TEMPLATE_SUFFIX.length());
+      try {
+        templateEngine.process(name, new Context(), discard);
+      } catch (RuntimeException e) {
+        logger.debug("Template {} was parsed but not rendered during warm-up", name, e);
+      }
+    }
+  }
+
+  /** Runs a count query through every repository. */
+  private void primeRepositories() {
+    for (CrudRepository<?, ?> repository : repositories) {
+      repository.count();
+    }
+  }
+
+  /** Requests each path requestIterations times from the local server, sharing one session. The
+   * server's certificate must be trusted by this JVM, or base-url must point to a plain HTTP
+   * connector. */
+  private void sendSyntheticRequests() throws Exception {
+    HttpClient client = HttpClient.newBuilder()
+        .cookieHandler(new CookieManager())
+        .connectTimeout(requestTimeout)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .build();
+    for (int i = 0; i < requestIterations; i++) {
+      for (String path : requestPaths) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path.trim()))
+            .timeout(requestTimeout)
+            .GET()
+            .build();
+        client.send(request, java.net.http.HttpResponse.BodyHandlers.discarding());
+      }
+    }
+  }
+}
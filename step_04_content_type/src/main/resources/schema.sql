@@ -16,8 +16,76 @@ CREATE TABLE IF NOT EXISTS users (
     email VARCHAR(255), -- user's email address
 );
 
+CREATE TABLE IF NOT EXISTS user_credentials (
+    id VARCHAR(255) PRIMARY KEY, -- user's unique Google ID, same as users.id
+    access_token VARCHAR(2048), -- current access token
+    refresh_token VARCHAR(2048), -- refresh token
+    expiration_time_ms BIGINT, -- access token expiry, in epoch milliseconds
+    updated_at BIGINT, -- last save time, in epoch milliseconds
+);
+
 CREATE TABLE IF NOT EXISTS attachments (
     id VARCHAR (255) PRIMARY KEY, -- unique attachment id
     image_filename VARCHAR(255), -- attachment image filename
     image_caption VARCHAR(255), -- attachment image caption
-)
\ No newline at end of file
+);
+
+CREATE TABLE IF NOT EXISTS attachment_jobs (
+    id VARCHAR(255) PRIMARY KEY, -- unique job id returned to the client
+    user_id VARCHAR(255), -- id of the user who created the job
+    course_id VARCHAR(255), -- course the item belongs to
+    item_id VARCHAR(255), -- item the attachments are added to
+    add_on_token VARCHAR(2048), -- add-on token provided by Classroom
+    view_uri VARCHAR(2048), -- teacher and student view URI of the attachments
+    status VARCHAR(255), -- PENDING, RUNNING, SUCCEEDED or FAILED
+    error VARCHAR(2048), -- error message if the job failed
+    updated_at BIGINT, -- last claim or update time, in epoch milliseconds
+    version BIGINT, -- optimistic lock used when claiming the job
+);
+
+CREATE TABLE IF NOT EXISTS attachment_job_items (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY, -- generated item id
+    job_id VARCHAR(255), -- job the item belongs to
+    position INT, -- 1-based position in the selection
+    image_filename VARCHAR(255), -- attachment image filename
+    attachment_id VARCHAR(255), -- created attachment id, null until created
+);
+
+CREATE TABLE IF NOT EXISTS idempotency_records (
+    id VARCHAR(255) PRIMARY KEY, -- hashed idempotency key
+    response CLOB, -- JSON encoded response of the original request
+    created_at BIGINT, -- completion time, in epoch milliseconds
+);
+
+CREATE TABLE IF NOT EXISTS pending_revocations (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY, -- generated revocation id
+    user_id VARCHAR(255), -- user whose token is revoked
+    token VARCHAR(2048), -- refresh or access token to revoke, cleared once FAILED
+    status VARCHAR(255), -- PENDING, RUNNING or FAILED
+    attempts INT, -- revoke calls made so far
+    next_attempt_at BIGINT, -- next call time, lease expiry while RUNNING or failure time, in ms
+    last_error VARCHAR(2048), -- error of the last unsuccessful call
+    version BIGINT, -- optimistic lock used when claiming the revocation
+);
+
+CREATE TABLE IF NOT EXISTS deprovisioning_jobs (
+    id VARCHAR(255) PRIMARY KEY, -- unique job id returned to the caller
+    email_domain VARCHAR(255), -- email domain to deprovision, null for all users
+    status VARCHAR(255), -- PENDING, RUNNING, SUCCEEDED or FAILED
+    checkpoint VARCHAR(255), -- id of the last user of the last completed batch
+    processed BIGINT, -- users processed so far
+    revoked BIGINT, -- users whose token was revoked or already invalid
+    queued BIGINT, -- users whose revocation was queued for retries
+    error VARCHAR(2048), -- error message if the job failed
+    started_at BIGINT, -- first claim time, in epoch milliseconds
+    updated_at BIGINT, -- last claim or update time, in epoch milliseconds
+    version BIGINT, -- optimistic lock used when claiming the job
+);
+
+CREATE TABLE IF NOT EXISTS cache_invalidations (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY, -- generated id, increasing in write order
+    cache_name VARCHAR(255), -- cache the entry belongs to, such as credentials or attachments
+    cache_key VARCHAR(255), -- key of the entry to drop, such as a user id or attachment id
+    node_id VARCHAR(255), -- node that wrote the row and already dropped the entry
+    created_at BIGINT, -- write time, in epoch milliseconds
+);
\ No newline at end of file
@@ -41,4 +41,32 @@ function closeAddonIframe() {
         action: 'closeIframe',
       },
       '*');
-}
\ No newline at end of file
+}
+
+/**
+ * Polls the status of a queued attachment creation job once per second and
+ * shows its progress on the page until the job has finished.
+ * @param {string} jobId The id of the job returned by /create-attachment.
+ */
+function pollAttachmentJob(jobId) {
+  fetch('/attachment-jobs/' + encodeURIComponent(jobId))
+      .then((response) => response.json())
+      .then((job) => {
+        const status = document.getElementById('job-status');
+        if (job.status === 'SUCCEEDED') {
+          document.getElementById('job-title').textContent =
+              'Successfully added attachments!';
+          status.textContent = 'Created attachments: ' + job.attachmentIds.join(', ');
+        } else if (job.status === 'FAILED') {
+          document.getElementById('job-title').textContent =
+              'Could not add all attachments.';
+          status.textContent = job.error + ' (' + job.created + ' of ' +
+              job.total + ' created)';
+        } else {
+          status.textContent = 'Created ' + job.created + ' of ' + job.total +
+              ' attachments.';
+          setTimeout(() => pollAttachmentJob(jobId), 1000);
+        }
+      })
+      .catch(() => setTimeout(() => pollAttachmentJob(jobId), 1000));
+}
@@ -0,0 +1,111 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations under
+// the License.
+package com.example.content_type.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.example.content_type.ContentTypeApplication;
+import com.example.content_type.models.User;
+import com.example.content_type.models.UserAccount;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/** Runs two nodes as separate application contexts sharing one in-memory database. */
+class ClusterInvalidationServiceTest {
+
+  @TempDir
+  Path directory;
+
+  private ConfigurableApplicationContext nodeA;
+  private ConfigurableApplicationContext nodeB;
+
+  @BeforeEach
+  void startNodes() {
+    nodeA = startNode("a");
+    nodeB = startNode("b");
+  }
+
+  @AfterEach
+  void stopNodes() {
+    nodeB.close();
+    nodeA.close();
+  }
+
+  @Test
+  void nodesGenerateDifferentIds() {
+    assertNotEquals(nodeA.getBean(ClusterInvalidationService.class).getNodeId(),
+        nodeB.getBean(ClusterInvalidationService.class).getNodeId());
+  }
+
+  @Test
+  void invalidationPublishedOnOneNodeEvictsOnTheOther() throws Exception {
+    ClusterInvalidationService clusterA = nodeA.getBean(ClusterInvalidationService.class);
+    UserAccountCache usersA = nodeA.getBean(UserAccountCache.class);
+    UserAccountCache usersB = nodeB.getBean(UserAccountCache.class);
+    AtomicInteger loadsA = new AtomicInteger();
+    AtomicInteger loadsB = new AtomicInteger();
+    UserAccount cachedA = usersA.get("user", loader(loadsA));
+    UserAccount cachedB = usersB.get("user", loader(loadsB));
+
+    /** Node B ignores invalidations written before its first poll, so publish until it has
+     * applied one. */
+    long deadline = System.currentTimeMillis() + 10000;
+    while (usersB.get("user", loader(loadsB)) == cachedB
+        && System.currentTimeMillis() < deadline) {
+      clusterA.publish(ClusterInvalidationService.USERS, "user");
+      Thread.sleep(200);
+    }
+    Thread.sleep(500);
+
+    assertNotSame(cachedB, usersB.get("user", loader(loadsB)));
+    assertEquals(2, loadsB.get());
+    assertSame(cachedA, usersA.get("user", loader(loadsA)));
+    assertEquals(1, loadsA.get());
+  }
+
+  private static UserAccountCache.UserAccountLoader loader(AtomicInteger loads) {
+    return () -> {
+      loads.incrementAndGet();
+      return new UserAccount(new User("user", "user@example.com"), null);
+    };
+  }
+
+  /** Starts a node without a web server, with the background work that is not under test off.
+   * The settings are passed as arguments so that they take precedence over
+   * application.properties. As with the file database, the tables are created by Hibernate
+   * rather than by schema.sql. */
+  private ConfigurableApplicationContext startNode(String name) {
+    return new SpringApplicationBuilder(ContentTypeApplication.class)
+        .web(WebApplicationType.NONE)
+        .run("--spring.datasource.url=jdbc:h2:mem:cluster-test;DB_CLOSE_DELAY=-1",
+            "--spring.datasource.username=sa",
+            "--spring.datasource.password=",
+            "--spring.sql.init.mode=never",
+            "--addon.cluster.invalidation.enabled=true",
+            "--addon.cluster.invalidation.poll-interval-ms=100",
+            "--addon.credential-store.directory=" + directory.resolve(name),
+            "--addon.token-refresh.enabled=false",
+            "--addon.warm-up.enabled=false");
+  }
+}
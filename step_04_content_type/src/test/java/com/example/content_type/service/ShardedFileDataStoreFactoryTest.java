@@ -0,0 +1,239 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.example.content_type.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardedFileDataStoreFactoryTest {
+  private static final String STORE_ID = "StoredCredential";
+
+  @TempDir
+  File dataDirectory;
+
+  @Test
+  void reopenedStoreKeepsFlushedEntries() throws IOException {
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      store.set("alice", "token-a").set("bob", "token-b").delete("bob");
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-a", store.get("alice"));
+      assertFalse(store.containsKey("bob"));
+      assertEquals(1, store.size());
+    }
+  }
+
+  @Test
+  void tornRecordAtEndOfLogIsDropped() throws IOException {
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      factory.<String>getDataStore(STORE_ID).set("alice", "token-a");
+    }
+    File log = logFile();
+    long validLength = log.length();
+    byte[] record = record("bob", "token-b");
+    try (FileOutputStream out = new FileOutputStream(log, true)) {
+      out.write(record, 0, record.length - 3);
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-a", store.get("alice"));
+      assertFalse(store.containsKey("bob"));
+      assertEquals(validLength, log.length());
+      store.set("carol", "token-c");
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-a", store.get("alice"));
+      assertEquals("token-c", store.get("carol"));
+    }
+  }
+
+  @Test
+  void recordWithBadChecksumIsDropped() throws IOException {
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      store.set("alice", "token-a");
+      factory.flush();
+      store.set("alice", "token-b");
+    }
+    try (RandomAccessFile log = new RandomAccessFile(logFile(), "rw")) {
+      log.seek(log.length() - 6);
+      int lastValueByte = log.read();
+      log.seek(log.length() - 6);
+      log.write(lastValueByte ^ 0xff);
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      assertEquals("token-a", factory.<String>getDataStore(STORE_ID).get("alice"));
+    }
+  }
+
+  @Test
+  void damagedRecordFollowedByOthersFailsToOpen() throws IOException {
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      store.set("alice", "token-a");
+      factory.flush();
+      store.set("bob", "token-b");
+    }
+    File log = logFile();
+    long length = log.length();
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      file.seek(5);
+      int keyByte = file.read();
+      file.seek(5);
+      file.write(keyByte ^ 0xff);
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      assertThrows(IOException.class, () -> factory.getDataStore(STORE_ID));
+    }
+    assertEquals(length, log.length());
+  }
+
+  @Test
+  void valueLengthBeyondEndOfLogIsTreatedAsTorn() throws IOException {
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      factory.<String>getDataStore(STORE_ID).set("alice", "token-a");
+    }
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile(), true))) {
+      byte[] key = "bob".getBytes(StandardCharsets.UTF_8);
+      out.writeInt(key.length);
+      out.write(key);
+      out.writeInt(Integer.MAX_VALUE - 16);
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-a", store.get("alice"));
+      assertFalse(store.containsKey("bob"));
+    }
+  }
+
+  @Test
+  void compactionKeepsOnlyLiveEntries() throws IOException {
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      store.set("deleted", "token");
+      for (int i = 0; i < 1500; i++) {
+        store.set("alice", "token-" + i);
+        factory.flush();
+      }
+      store.delete("deleted");
+      factory.flush();
+      assertTrue(logFile().length() < 1500 * record("alice", "token-0").length / 2);
+    }
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-1499", store.get("alice"));
+      assertFalse(store.containsKey("deleted"));
+      assertEquals(1, store.size());
+    }
+  }
+
+  @Test
+  void fileDataStoreIsImportedOnce() throws IOException {
+    DataStore<String> legacyStore =
+        new FileDataStoreFactory(dataDirectory).getDataStore(STORE_ID);
+    legacyStore.set("alice", "token-a").set("bob", "token-b");
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-a", store.get("alice"));
+      assertEquals("token-b", store.get("bob"));
+      store.delete("bob");
+    }
+    assertFalse(new File(dataDirectory, STORE_ID).exists());
+    assertTrue(new File(dataDirectory, STORE_ID + ".migrated").isFile());
+
+    try (ShardedFileDataStoreFactory factory = newFactory()) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      assertEquals("token-a", store.get("alice"));
+      assertNull(store.get("bob"));
+    }
+  }
+
+  @Test
+  void storeReopenedWithAnotherShardCountKeepsEntriesAndDeletions() throws IOException {
+    try (ShardedFileDataStoreFactory factory =
+        new ShardedFileDataStoreFactory(dataDirectory, 4, 3_600_000, false)) {
+      DataStore<String> store = factory.getDataStore(STORE_ID);
+      for (int i = 0; i < 100; i++) {
+        store.set("user-" + i, "token-" + i);
+      }
+      factory.flush();
+      for (int i = 0; i < 100; i += 2) {
+        store.delete("user-" + i);
+      }
+    }
+
+    for (int shardCount : new int[] {7, 2}) {
+      try (ShardedFileDataStoreFactory factory =
+          new ShardedFileDataStoreFactory(dataDirectory, shardCount, 3_600_000, false)) {
+        DataStore<String> store = factory.getDataStore(STORE_ID);
+        assertEquals(50, store.size());
+        for (int i = 0; i < 100; i++) {
+          assertEquals(i % 2 == 0 ? null : "token-" + i, store.get("user-" + i));
+        }
+      }
+      File[] logs = new File(dataDirectory, STORE_ID + ".shards").listFiles();
+      assertEquals(shardCount, logs.length);
+      assertFalse(new File(dataDirectory, STORE_ID + ".shards.previous").exists());
+    }
+  }
+
+  /** Uses a single shard, so every key is in the same log, and flushes only when asked. */
+  private ShardedFileDataStoreFactory newFactory() throws IOException {
+    return new ShardedFileDataStoreFactory(dataDirectory, 1, 3_600_000, false);
+  }
+
+  private File logFile() {
+    return new File(new File(dataDirectory, STORE_ID + ".shards"), "shard-0.log");
+  }
+
+  /** Returns a record as the store writes it, found as the only record of a fresh log. */
+  private byte[] record(String key, String value) throws IOException {
+    File directory = new File(dataDirectory, "record");
+    try (ShardedFileDataStoreFactory factory =
+        new ShardedFileDataStoreFactory(directory, 1, 3_600_000, false)) {
+      factory.<String>getDataStore(STORE_ID).set(key, value);
+    }
+    File log = new File(new File(directory, STORE_ID + ".shards"), "shard-0.log");
+    byte[] bytes = Files.readAllBytes(log.toPath());
+    assertTrue(log.delete());
+    return bytes;
+  }
+}